@@ -0,0 +1,182 @@
+package peersim;
+
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Node;
+import peersim.edsim.EDProtocol;
+import peersim.edsim.EDSimulator;
+import peersim.transport.Transport;
+
+/**
+ * Transport layer which accounts for the transmission cost of the messages.<br>
+ * Every node has an uplink and a downlink of limited bandwidth (bytes per second, drawn for every node between the configured
+ * minimum and maximum), both FIFO: a message is serialized on the uplink of the sender after the messages sent before it, then
+ * travels with the latency of the underlying transport, then is received on the downlink of the destination after the messages
+ * which reached it before. The size of a message is its wire size (see Message.wireSize()).<br>
+ * The arrival of a message at the destination is an event of this transport on the destination node, which only then queues
+ * the message on its downlink: the messages are received in the order they arrive.<br>
+ * The underlying transport only gives the propagation latency (its send is not used), so drops have to be configured on top of
+ * this transport, e.g. with an UnreliableTransport using it.
+ */
+public class BandwidthTransport implements Transport, EDProtocol {
+
+	/**
+	 * A message which reached the destination and still has to be received on its downlink
+	 */
+	private static final class Arrival {
+
+		final Object msg;
+		final int pid;
+		final int bytes;
+
+		// time at which the message reached the destination (ms, fractional)
+		final double arrival;
+
+		// time spent on the uplink of the source, queueing and transmitting (ms)
+		final double uplinkDelay;
+
+		Arrival(Object msg, int pid, int bytes, double arrival, double uplinkDelay) {
+			this.msg = msg;
+			this.pid = pid;
+			this.bytes = bytes;
+			this.arrival = arrival;
+			this.uplinkDelay = uplinkDelay;
+		}
+	}
+
+	/**
+	 * underlying transport (propagation latency)
+	 */
+	private static final String PAR_TRANSPORT = "transport";
+
+	/**
+	 * bandwidth of the uplink, in bytes per second (0 for unlimited), and maximum if it differs between nodes
+	 */
+	private static final String PAR_UPLINK = "uplink";
+	private static final String PAR_UPLINK_MAX = "uplink_max";
+
+	/**
+	 * bandwidth of the downlink, in bytes per second (0 for unlimited), and maximum if it differs between nodes
+	 */
+	private static final String PAR_DOWNLINK = "downlink";
+	private static final String PAR_DOWNLINK_MAX = "downlink_max";
+
+	// protocol id of the underlying transport and of this transport
+	private final int transport;
+	private final int pid;
+
+	private final long uplinkMin;
+	private final long uplinkMax;
+	private final long downlinkMin;
+	private final long downlinkMax;
+
+	// bandwidth of the links of this node (bytes per second, 0 for unlimited)
+	private long uplink;
+	private long downlink;
+
+	// time at which the links of this node will be free (ms, fractional)
+	private double uplinkFree = 0;
+	private double downlinkFree = 0;
+
+	public BandwidthTransport(String prefix) {
+		transport = Configuration.getPid(prefix + "." + PAR_TRANSPORT);
+		pid = Configuration.lookupPid(prefix.substring(prefix.lastIndexOf('.') + 1));
+		uplinkMin = Configuration.getLong(prefix + "." + PAR_UPLINK, 0);
+		uplinkMax = Configuration.getLong(prefix + "." + PAR_UPLINK_MAX, uplinkMin);
+		downlinkMin = Configuration.getLong(prefix + "." + PAR_DOWNLINK, 0);
+		downlinkMax = Configuration.getLong(prefix + "." + PAR_DOWNLINK_MAX, downlinkMin);
+		uplink = uplinkMin;
+		downlink = downlinkMin;
+	}
+
+	/**
+	 * every node gets its own links, with bandwidths drawn between the minimum and the maximum
+	 */
+	public Object clone() {
+		BandwidthTransport dolly = null;
+		try {
+			dolly = (BandwidthTransport) super.clone();
+		} catch (CloneNotSupportedException e) {
+		}
+		dolly.uplink = draw(uplinkMin, uplinkMax);
+		dolly.downlink = draw(downlinkMin, downlinkMax);
+		dolly.uplinkFree = 0;
+		dolly.downlinkFree = 0;
+		return dolly;
+	}
+
+	private static long draw(long min, long max) {
+		if (max <= min)
+			return min;
+		return min + (long) (CommonState.r.nextDouble() * (max - min + 1));
+	}
+
+	// time (ms) needed to transmit the given bytes on a link
+	private static double transmission(int bytes, long bandwidth) {
+		return bandwidth <= 0 ? 0 : bytes * 1000.0 / bandwidth;
+	}
+
+	/**
+	 * Send the message to the destination after the queueing and transmission time on the uplink of the source and the latency
+	 * of the underlying transport, where it is received on the downlink (see processEvent).
+	 */
+	public void send(Node src, Node dest, Object msg, int pid) {
+		int bytes = msg instanceof Message ? ((Message) msg).wireSize() : 0;
+		long now = CommonState.getTime();
+
+		// uplink of the source
+		double sent = Math.max(now, uplinkFree) + transmission(bytes, uplink);
+		uplinkFree = sent;
+
+		// propagation
+		long latency = ((Transport) src.getProtocol(transport)).getLatency(src, dest);
+		double arrival = sent + latency;
+
+		EDSimulator.add((long) Math.ceil(arrival - now), new Arrival(msg, pid, bytes, arrival, sent - now), dest, this.pid);
+	}
+
+	/**
+	 * A message reached this node: deliver it to its protocol after the queueing and transmission time on the downlink.
+	 */
+	public void processEvent(Node node, int pid, Object event) {
+		Arrival a = (Arrival) event;
+		long now = CommonState.getTime();
+
+		double received = Math.max(a.arrival, downlinkFree) + transmission(a.bytes, downlink);
+		downlinkFree = received;
+
+		long delay = (long) Math.ceil(received - now);
+		KademliaObserver.linkDelayHist.record((long) Math.ceil(a.uplinkDelay + received - a.arrival));
+		EDSimulator.add(delay, a.msg, node, a.pid);
+	}
+
+	/**
+	 * latency of the underlying transport, plus the time the links stay busy with the messages already queued
+	 */
+	public long getLatency(Node src, Node dest) {
+		long latency = ((Transport) src.getProtocol(transport)).getLatency(src, dest);
+		BandwidthTransport to = (BandwidthTransport) dest.getProtocol(this.pid);
+		long now = CommonState.getTime();
+		double wait = Math.max(0, uplinkFree - now) + Math.max(0, to.downlinkFree - now);
+		return latency + (long) Math.ceil(wait);
+	}
+
+	/**
+	 * bandwidth of the uplink of this node
+	 *
+	 * @return bytes per second, 0 for unlimited
+	 */
+	public long getUplink() {
+		return uplink;
+	}
+
+	/**
+	 * bandwidth of the downlink of this node
+	 *
+	 * @return bytes per second, 0 for unlimited
+	 */
+	public long getDownlink() {
+		return downlink;
+	}
+
+}
@@ -0,0 +1,263 @@
+package peersim;
+
+import peersim.core.CommonState;
+
+/**
+ * Base of the storage engines: the entries of the values (value, size, expiration, popularity) are indexed by key in a LocalStore
+ * and linked in the order they were stored, which is the order they expire in since every value has the same time to live. The
+ * expired values are removed before every operation.<br>
+ * When a value does not fit, the subclass chooses the values to evict (see victim()), or refuses the value.
+ */
+public abstract class BoundedStorage implements StorageEngine {
+
+	/**
+	 * A stored value, with the links of the lists it belongs to
+	 */
+	protected static final class Entry {
+
+		public final NodeId key;
+		public Object value;
+		public int bytes;
+
+		/**
+		 * time at which the value expires
+		 */
+		public long expires;
+
+		/**
+		 * number of lookups which found the value
+		 */
+		public long accesses = 0;
+
+		// store order
+		Entry older;
+		Entry newer;
+
+		/**
+		 * links available to the subclass (for its own order of the values)
+		 */
+		Entry prev;
+		Entry next;
+
+		Entry(NodeId key) {
+			this.key = key;
+		}
+
+		public String toString() {
+			return String.valueOf(value);
+		}
+	}
+
+	/**
+	 * capacity, in bytes
+	 */
+	protected final long capacity;
+
+	/**
+	 * time to live of the values (0 for no expiration)
+	 */
+	protected final long ttl;
+
+	private final LocalStore index = new LocalStore();
+
+	// sum of the sizes of the stored values
+	private long bytes = 0;
+
+	// first and last stored value
+	private Entry oldest = null;
+	private Entry newest = null;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+
+	/**
+	 * creates an empty storage
+	 *
+	 * @param capacity
+	 *            bytes
+	 * @param ttl
+	 *            time to live of the values, 0 for no expiration
+	 */
+	public BoundedStorage(long capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * choose the value to evict to make room for a new one
+	 *
+	 * @return the entry to evict, or null if values are never evicted
+	 */
+	protected abstract Entry victim();
+
+	/**
+	 * a value has been stored
+	 *
+	 * @param e
+	 *            Entry
+	 */
+	protected void inserted(Entry e) {
+	}
+
+	/**
+	 * a value has been found by a lookup
+	 *
+	 * @param e
+	 *            Entry
+	 */
+	protected void accessed(Entry e) {
+	}
+
+	/**
+	 * a value has been removed (evicted, expired or replaced)
+	 *
+	 * @param e
+	 *            Entry
+	 */
+	protected void removed(Entry e) {
+	}
+
+	/**
+	 * the value stored first (the next to expire), the others follow through newer()
+	 *
+	 * @return Entry, or null if nothing is stored
+	 */
+	protected Entry oldest() {
+		return oldest;
+	}
+
+	/**
+	 * the value stored after the given one
+	 *
+	 * @param e
+	 *            Entry
+	 * @return Entry, or null if e is the last one
+	 */
+	protected Entry newer(Entry e) {
+		return e.newer;
+	}
+
+	// remove the values whose time to live passed
+	private void expire() {
+		if (ttl <= 0)
+			return;
+		long now = CommonState.getTime();
+		while (oldest != null && oldest.expires <= now) {
+			remove(oldest);
+			expirations++;
+		}
+	}
+
+	private void remove(Entry e) {
+		index.remove(e.key);
+		bytes -= e.bytes;
+		if (e.older != null)
+			e.older.newer = e.newer;
+		else
+			oldest = e.newer;
+		if (e.newer != null)
+			e.newer.older = e.older;
+		else
+			newest = e.older;
+		e.older = null;
+		e.newer = null;
+		removed(e);
+	}
+
+	public Object get(NodeId key) {
+		expire();
+		Entry e = (Entry) index.get(key);
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		e.accesses++;
+		accessed(e);
+		return e.value;
+	}
+
+	public boolean containsKey(NodeId key) {
+		expire();
+		return index.containsKey(key);
+	}
+
+	public int sizeOf(NodeId key) {
+		expire();
+		Entry e = (Entry) index.get(key);
+		return e == null ? -1 : e.bytes;
+	}
+
+	public boolean put(NodeId key, Object value, int bytes) {
+		expire();
+		if (bytes > capacity)
+			return false;
+		Entry e = (Entry) index.get(key);
+		long free = capacity - this.bytes + (e == null ? 0 : e.bytes);
+		if (bytes > free && victim() == null)
+			return false;
+
+		// the new value replaces the old one (and expires later, keeping its popularity)
+		long accesses = 0;
+		if (e != null) {
+			accesses = e.accesses;
+			remove(e);
+		}
+		while (bytes > capacity - this.bytes) {
+			remove(victim());
+			evictions++;
+		}
+		e = new Entry(key);
+		e.value = value;
+		e.bytes = bytes;
+		e.accesses = accesses;
+		e.expires = ttl > 0 ? CommonState.getTime() + ttl : Long.MAX_VALUE;
+		e.older = newest;
+		if (newest != null)
+			newest.newer = e;
+		else
+			oldest = e;
+		newest = e;
+		index.put(key, e);
+		this.bytes += bytes;
+		inserted(e);
+		return true;
+	}
+
+	public int size() {
+		expire();
+		return index.size();
+	}
+
+	public long bytes() {
+		expire();
+		return bytes;
+	}
+
+	public long free() {
+		return capacity - bytes();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getExpirations() {
+		return expirations;
+	}
+
+	public String toString() {
+		return index.toString();
+	}
+
+}
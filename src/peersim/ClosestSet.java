@@ -0,0 +1,299 @@
+package peersim;
+
+import java.util.Arrays;
+
+/**
+ * The closest set of a find operation: the K nodes closest to the target found so far, kept sorted by distance from the target
+ * (closest first).<br>
+ * The XOR distance of every entry is computed once, on insertion, and cached in primitive arrays; a node is found or inserted
+ * by binary search on the distance (two nodes never have the same distance from the target). Every entry has a state: NEW (not
+ * queried yet), PENDING (request in flight), QUERIED (it answered) or FAILED (the request timed out). Failed entries stay in
+ * the set, so they are not queried again, but they do not count towards the K entries. The storage capacity a node reported in
+ * its response is kept with its entry.
+ */
+public class ClosestSet {
+
+	/**
+	 * the node has not been queried yet
+	 */
+	public static final byte NEW = 0;
+
+	/**
+	 * a request has been sent to the node and is waiting for the response
+	 */
+	public static final byte PENDING = 1;
+
+	/**
+	 * the node answered
+	 */
+	public static final byte QUERIED = 2;
+
+	/**
+	 * the request sent to the node timed out
+	 */
+	public static final byte FAILED = 3;
+
+	private final NodeId target;
+
+	// max number of entries not failed
+	private final int capacity;
+
+	// entries, sorted by distance from the target
+	private NodeId[] nodes;
+	private byte[] states;
+
+	// capacity reported by the QUERIED entries
+	private int[] capacities;
+
+	// cached distances from the target
+	private long[] distHi;
+	private long[] distMid;
+	private int[] distLo;
+
+	// number of entries (failed ones included)
+	private int size = 0;
+
+	// number of entries not failed
+	private int live = 0;
+
+	// there are no NEW entries before this position
+	private int cursor = 0;
+
+	/**
+	 * creates an empty set
+	 *
+	 * @param target
+	 *            the id the distances are computed from
+	 * @param capacity
+	 *            max number of not failed entries (K)
+	 */
+	public ClosestSet(NodeId target, int capacity) {
+		this.target = target;
+		this.capacity = capacity;
+		int len = capacity + KademliaCommonConfig.ALPHA;
+		nodes = new NodeId[len];
+		states = new byte[len];
+		capacities = new int[len];
+		distHi = new long[len];
+		distMid = new long[len];
+		distLo = new int[len];
+	}
+
+	// compare the cached distance of entry i with the given one
+	private int compareAt(int i, long dh, long dm, int dl) {
+		if (distHi[i] != dh)
+			return Long.compareUnsigned(distHi[i], dh);
+		if (distMid[i] != dm)
+			return Long.compareUnsigned(distMid[i], dm);
+		return Integer.compareUnsigned(distLo[i], dl);
+	}
+
+	// first position whose distance is not less than the given one
+	private int search(long dh, long dm, int dl) {
+		int inf = 0;
+		int sup = size;
+		while (inf < sup) {
+			int m = (inf + sup) >>> 1;
+			if (compareAt(m, dh, dm, dl) < 0)
+				inf = m + 1;
+			else
+				sup = m;
+		}
+		return inf;
+	}
+
+	// position of the node, or -1
+	private int indexOf(NodeId node) {
+		long dh = node.hi ^ target.hi;
+		long dm = node.mid ^ target.mid;
+		int dl = node.lo ^ target.lo;
+		int i = search(dh, dm, dl);
+		if (i < size && compareAt(i, dh, dm, dl) == 0)
+			return i;
+		return -1;
+	}
+
+	// remove the entry in position i
+	private void removeAt(int i) {
+		if (states[i] != FAILED)
+			live--;
+		size--;
+		int n = size - i;
+		System.arraycopy(nodes, i + 1, nodes, i, n);
+		System.arraycopy(states, i + 1, states, i, n);
+		System.arraycopy(capacities, i + 1, capacities, i, n);
+		System.arraycopy(distHi, i + 1, distHi, i, n);
+		System.arraycopy(distMid, i + 1, distMid, i, n);
+		System.arraycopy(distLo, i + 1, distLo, i, n);
+		nodes[size] = null;
+		if (i < cursor)
+			cursor--;
+	}
+
+	/**
+	 * Add a node to the set if it is among the K closest ones. When the set is full the farthest entry not failed is dropped.
+	 *
+	 * @param node
+	 *            NodeId
+	 * @return true if the node has been added
+	 */
+	public boolean add(NodeId node) {
+		long dh = node.hi ^ target.hi;
+		long dm = node.mid ^ target.mid;
+		int dl = node.lo ^ target.lo;
+		int pos = search(dh, dm, dl);
+
+		// already known (in any state)
+		if (pos < size && compareAt(pos, dh, dm, dl) == 0)
+			return false;
+
+		// full: the node must be closer than the farthest entry not failed
+		int farthest = -1;
+		if (live >= capacity) {
+			farthest = size - 1;
+			while (states[farthest] == FAILED)
+				farthest--;
+			if (pos > farthest)
+				return false;
+		}
+
+		if (size == nodes.length) {
+			int len = size * 2;
+			nodes = Arrays.copyOf(nodes, len);
+			states = Arrays.copyOf(states, len);
+			capacities = Arrays.copyOf(capacities, len);
+			distHi = Arrays.copyOf(distHi, len);
+			distMid = Arrays.copyOf(distMid, len);
+			distLo = Arrays.copyOf(distLo, len);
+		}
+
+		int n = size - pos;
+		System.arraycopy(nodes, pos, nodes, pos + 1, n);
+		System.arraycopy(states, pos, states, pos + 1, n);
+		System.arraycopy(capacities, pos, capacities, pos + 1, n);
+		System.arraycopy(distHi, pos, distHi, pos + 1, n);
+		System.arraycopy(distMid, pos, distMid, pos + 1, n);
+		System.arraycopy(distLo, pos, distLo, pos + 1, n);
+		nodes[pos] = node;
+		states[pos] = NEW;
+		distHi[pos] = dh;
+		distMid[pos] = dm;
+		distLo[pos] = dl;
+		size++;
+		live++;
+		if (pos < cursor)
+			cursor = pos;
+
+		if (farthest >= 0)
+			removeAt(farthest + 1);
+
+		return true;
+	}
+
+	/**
+	 * return the closest node not queried yet, and mark it as PENDING
+	 *
+	 * @return the id of the node, or null if all the nodes have been queried
+	 */
+	public NodeId nextUnqueried() {
+		while (cursor < size && states[cursor] != NEW)
+			cursor++;
+		if (cursor == size)
+			return null;
+		states[cursor] = PENDING;
+		return nodes[cursor];
+	}
+
+	/**
+	 * mark a node as QUERIED (it answered)
+	 *
+	 * @param node
+	 *            NodeId
+	 * @param capacity
+	 *            the storage capacity reported by the node
+	 */
+	public void markQueried(NodeId node, int capacity) {
+		int i = indexOf(node);
+		if (i >= 0 && states[i] != FAILED) {
+			states[i] = QUERIED;
+			capacities[i] = capacity;
+		}
+	}
+
+	/**
+	 * mark a node as FAILED (its request timed out)
+	 *
+	 * @param node
+	 *            NodeId
+	 */
+	public void markFailed(NodeId node) {
+		int i = indexOf(node);
+		if (i >= 0 && states[i] != FAILED) {
+			states[i] = FAILED;
+			live--;
+		}
+	}
+
+	/**
+	 * check if a node is in the set and has not failed
+	 *
+	 * @param node
+	 *            NodeId
+	 * @return boolean
+	 */
+	public boolean contains(NodeId node) {
+		int i = indexOf(node);
+		return i >= 0 && states[i] != FAILED;
+	}
+
+	/**
+	 * number of entries, failed ones included
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * the i-th closest entry
+	 *
+	 * @param i
+	 *            int
+	 * @return NodeId
+	 */
+	public NodeId get(int i) {
+		return nodes[i];
+	}
+
+	/**
+	 * state of the i-th closest entry
+	 *
+	 * @param i
+	 *            int
+	 * @return one of NEW, PENDING, QUERIED, FAILED
+	 */
+	public byte getState(int i) {
+		return states[i];
+	}
+
+	/**
+	 * storage capacity reported by the i-th closest entry
+	 *
+	 * @param i
+	 *            int
+	 * @return int (meaningful only if the entry is QUERIED)
+	 */
+	public int getCapacity(int i) {
+		return capacities[i];
+	}
+
+	public String toString() {
+		String s = "closestSet to " + target + "\n";
+		for (int i = 0; i < size; i++) {
+			s += nodes[i] + " (" + states[i] + ")\n";
+		}
+		return s;
+	}
+
+}
@@ -1,7 +1,5 @@
 package peersim;
 
-import java.math.BigInteger;
-
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Network;
@@ -32,12 +30,15 @@ public class CustomDistribution implements peersim.core.Control {
 	 * @return boolean always false
 	 */
 	public boolean execute() {
-		BigInteger tmp;
+		NodeId tmp;
+		NodeIndex.clear();
 		for (int i = 0; i < Network.size(); ++i) {
 			tmp = urg.generate();
 			((KademliaProtocol) (Network.get(i).getProtocol(protocolID))).setNodeId(tmp);
+			NodeIndex.put(tmp, Network.get(i));
 //			System.out.println(Network.get(i).getProtocol(protocolID).toString());
 		}
+		LiveNodes.rebuild();
 		return false;
 	}
 
@@ -0,0 +1,166 @@
+package peersim;
+
+/**
+ * Free lists of the Message and Timeout objects of the simulation.<br>
+ * Messages and timeouts live for a single delivery: with POOL enabled the protocol gives them back here when it is done with
+ * them (a message once processEvent handled it, a timeout once it has been answered, cancelled or expired for good), and they
+ * are reused for the next ones instead of being allocated again. The lists are bounded, so a burst of events does not keep its
+ * memory for the rest of the simulation.<br>
+ * With POOL_DEBUG enabled the released objects are marked and never reused: delivering, scheduling or releasing again an object
+ * already released throws an IllegalStateException, which points to the code still using it.<br>
+ * The simulator is single threaded, so the lists are not synchronized.
+ */
+public class EventPool {
+
+	/**
+	 * maximum number of free objects kept for every type
+	 */
+	public static final int MAX_FREE = 1 << 16;
+
+	private static Message[] messages = new Message[64];
+	private static int freeMessages = 0;
+
+	private static Timeout[] timeouts = new Timeout[64];
+	private static int freeTimeouts = 0;
+
+	// number of objects reused and allocated (for the statistics)
+	private static long reused = 0;
+	private static long allocated = 0;
+
+	/**
+	 * get a message with the given type and body (and a new id)
+	 *
+	 * @param type
+	 *            int type of the message
+	 * @param body
+	 *            Object body of the message
+	 * @return Message
+	 */
+	public static Message message(int type, Object body) {
+		if (freeMessages == 0) {
+			allocated++;
+			return new Message(type, body);
+		}
+		reused++;
+		Message m = messages[--freeMessages];
+		messages[freeMessages] = null;
+		m.reset(type, body);
+		return m;
+	}
+
+	/**
+	 * get a timeout for a request (or for a whole operation, if node is null)
+	 *
+	 * @param node
+	 *            NodeId the request has been sent to
+	 * @param msgID
+	 *            id of the request
+	 * @param opID
+	 *            id of the operation
+	 * @return Timeout
+	 */
+	public static Timeout timeout(NodeId node, long msgID, long opID) {
+		if (freeTimeouts == 0) {
+			allocated++;
+			return new Timeout(node, msgID, opID);
+		}
+		reused++;
+		Timeout t = timeouts[--freeTimeouts];
+		timeouts[freeTimeouts] = null;
+		t.reset(node, msgID, opID);
+		return t;
+	}
+
+	/**
+	 * give back a message nobody uses anymore
+	 *
+	 * @param m
+	 *            Message
+	 */
+	public static void release(Message m) {
+		if (KademliaCommonConfig.POOL_DEBUG) {
+			check(m, "released");
+			m.recycled = true;
+			m.body = null;
+			return;
+		}
+		if (!KademliaCommonConfig.POOL)
+			return;
+		m.body = null; // do not keep the body alive
+		if (freeMessages == messages.length) {
+			if (freeMessages == MAX_FREE)
+				return;
+			messages = java.util.Arrays.copyOf(messages, freeMessages * 2);
+		}
+		messages[freeMessages++] = m;
+	}
+
+	/**
+	 * give back a timeout nobody uses anymore (it must not be in a timer wheel)
+	 *
+	 * @param t
+	 *            Timeout
+	 */
+	public static void release(Timeout t) {
+		if (KademliaCommonConfig.POOL_DEBUG) {
+			check(t, "released");
+			t.recycled = true;
+			return;
+		}
+		if (!KademliaCommonConfig.POOL)
+			return;
+		if (freeTimeouts == timeouts.length) {
+			if (freeTimeouts == MAX_FREE)
+				return;
+			timeouts = java.util.Arrays.copyOf(timeouts, freeTimeouts * 2);
+		}
+		timeouts[freeTimeouts++] = t;
+	}
+
+	/**
+	 * check that an event has not been released yet (only with POOL_DEBUG enabled)
+	 *
+	 * @param e
+	 *            the event about to be used
+	 * @param use
+	 *            what is being done with it, for the error message
+	 * @throws IllegalStateException
+	 *             if the event has already been released
+	 */
+	public static void check(SimpleEvent e, String use) {
+		if (KademliaCommonConfig.POOL_DEBUG && e.recycled)
+			throw new IllegalStateException(e.getClass().getSimpleName() + " of type " + e.getType() + " " + use
+					+ " after having been released");
+	}
+
+	/**
+	 * number of objects taken from the free lists
+	 *
+	 * @return long
+	 */
+	public static long getReused() {
+		return reused;
+	}
+
+	/**
+	 * number of objects allocated because the free lists were empty
+	 *
+	 * @return long
+	 */
+	public static long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * empty the free lists and reset the statistics (at the start of a new simulation)
+	 */
+	public static void clear() {
+		messages = new Message[64];
+		freeMessages = 0;
+		timeouts = new Timeout[64];
+		freeTimeouts = 0;
+		reused = 0;
+		allocated = 0;
+	}
+
+}
@@ -0,0 +1,124 @@
+package peersim;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Optional profiling of the event handlers of KademliaProtocol (enabled by KademliaCommonConfig.PROFILE).<br>
+ * For every event type it counts the events handled and the wall-clock nanoseconds spent in the handler. It also measures the
+ * events handled per second of wall-clock time and, when the JVM supports it, the bytes allocated per second by the simulation
+ * thread. The observer reports the values since its last step, a shutdown hook the totals.
+ */
+public class EventProfiler {
+
+	// event types are small numbers (message types and TimerWheel.TICK)
+	private static final int TYPES = 128;
+
+	private static final long[] count = new long[TYPES];
+	private static final long[] nanos = new long[TYPES];
+
+	// values at the last step
+	private static final long[] stepCount = new long[TYPES];
+	private static final long[] stepNanos = new long[TYPES];
+	private static long stepWall = System.nanoTime();
+	private static long stepAllocated = -1;
+
+	private static final long startWall = System.nanoTime();
+	private static long startAllocated = -1;
+
+	private static com.sun.management.ThreadMXBean allocations = null;
+
+	private static long simulationThread = -1;
+
+	// last value read, used when the simulation thread has terminated
+	private static long lastAllocated = -1;
+
+	/**
+	 * start profiling: called once, when the protocol is configured
+	 */
+	public static void start() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			allocations = (com.sun.management.ThreadMXBean) bean;
+			allocations.setThreadAllocatedMemoryEnabled(true);
+		}
+		simulationThread = Thread.currentThread().getId();
+		startAllocated = stepAllocated = allocated();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.err.println(report());
+			}
+		});
+	}
+
+	/**
+	 * account an event handled
+	 *
+	 * @param type
+	 *            type of the event
+	 * @param ns
+	 *            nanoseconds spent handling it
+	 */
+	public static void record(int type, long ns) {
+		int i = type & (TYPES - 1);
+		count[i]++;
+		nanos[i] += ns;
+	}
+
+	// bytes allocated by the simulation thread so far, -1 if unknown
+	private static long allocated() {
+		if (allocations != null) {
+			long a = allocations.getThreadAllocatedBytes(simulationThread);
+			if (a >= 0)
+				lastAllocated = a;
+		}
+		return lastAllocated;
+	}
+
+	private static String name(int type) {
+		return type == TimerWheel.TICK ? "TICK" : Message.messageTypetoString(type);
+	}
+
+	// summary of the events handled since the given values
+	private static String summary(long[] fromCount, long[] fromNanos, long fromWall, long fromAllocated) {
+		StringBuilder s = new StringBuilder();
+		long events = 0;
+		for (int i = 0; i < TYPES; i++) {
+			long c = count[i] - fromCount[i];
+			if (c == 0)
+				continue;
+			long ns = nanos[i] - fromNanos[i];
+			events += c;
+			s.append(String.format(" [%s %d ev %.1f ms %.0f ns/ev]", name(i), c, ns / 1e6, (double) ns / c));
+		}
+		double seconds = (System.nanoTime() - fromWall) / 1e9;
+		long allocated = allocated();
+		String rate = allocated < 0 ? "n/a" : String.format("%.1f MB/s", (allocated - fromAllocated) / seconds / (1 << 20));
+		return String.format("[%.0f events/s] [alloc %s]", events / seconds, rate) + s;
+	}
+
+	/**
+	 * the events handled since the last call
+	 *
+	 * @return String
+	 */
+	public static String step() {
+		String s = summary(stepCount, stepNanos, stepWall, stepAllocated);
+		System.arraycopy(count, 0, stepCount, 0, TYPES);
+		System.arraycopy(nanos, 0, stepNanos, 0, TYPES);
+		stepWall = System.nanoTime();
+		stepAllocated = allocated();
+		return s;
+	}
+
+	/**
+	 * all the events handled since the beginning
+	 *
+	 * @return String
+	 */
+	public static String report() {
+		return "profile total: " + summary(new long[TYPES], new long[TYPES], startWall, startAllocated);
+	}
+
+}
@@ -1,8 +1,6 @@
 package peersim;
 
-import java.math.BigInteger;
-import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.ArrayList;
 
 /**
  * This class represents a find operation and offer the methods needed to maintain and update the closest set.<br>
@@ -26,13 +24,23 @@ public class FindOperation {
 	/**
 	 * Id of the node to find
 	 */
-	public BigInteger destNode;
+	public NodeId destNode;
 
 	/**
 	 * Body of the original find message
 	 */
 	public Object body;
 
+	/**
+	 * type of the requests sent to the nodes queried: MSG_ROUTE (find node) or MSG_FINDVALUE (find value)
+	 */
+	public int requestType = Message.MSG_ROUTE;
+
+	/**
+	 * value found by a find value operation (null if not found yet)
+	 */
+	public Object value = null;
+
 	/**
 	 * number of available find request message to send (it must be always less than ALPHA)
 	 */
@@ -49,13 +57,19 @@ public class FindOperation {
 	protected int nrHops = 0;
 
 	/**
-	 * This map contains the K closest nodes and corresponding boolean value that indicates if the nodes has been already queried
-	 * or not
+	 * The K closest nodes found so far, sorted by distance from destNode, with the state of the request sent to each of them
+	 */
+	protected ClosestSet closestSet;
+
+	/**
+	 * timeouts of the requests sent and not answered yet
 	 */
-	protected HashMap<BigInteger, Boolean> closestSet;
+	protected ArrayList<Timeout> pending = new ArrayList<Timeout>(KademliaCommonConfig.ALPHA);
 
-	//test
-	protected TreeMap<BigInteger,Integer> nodeSpace = new TreeMap<>();
+	/**
+	 * timer which aborts the operation if it does not converge in time (null if there is no limit)
+	 */
+	protected Timeout deadline = null;
 
 	/**
 	 * defaul constructor
@@ -63,7 +77,7 @@ public class FindOperation {
 	 * @param destNode
 	 *            Id of the node to find
 	 */
-	public FindOperation(BigInteger destNode, long timestamp) {
+	public FindOperation(NodeId destNode, long timestamp) {
 		this.destNode = destNode;
 		this.timestamp = timestamp;
 
@@ -74,7 +88,7 @@ public class FindOperation {
 		available_requests = KademliaCommonConfig.ALPHA;
 
 		// initialize closestSet
-		closestSet = new HashMap<BigInteger, Boolean>();
+		closestSet = new ClosestSet(destNode, KademliaCommonConfig.K);
 	}
 
 	/**
@@ -82,47 +96,54 @@ public class FindOperation {
 	 * 
 	 * @param neighbours 	用节点的k个neighbours更新节点该次fop的closeSet
 	 */
-	public void elaborateResponse(BigInteger[] neighbours) {
+	public void elaborateResponse(NodeId[] neighbours) {
 		// update responseNumber
 		available_requests++;
 
-		// add to closestSet
-		for (BigInteger n : neighbours) {
-
-			if (n != null) {
-				if (!closestSet.containsKey(n)) {
-					if (closestSet.size() < KademliaCommonConfig.K) { // add directly
-						closestSet.put(n, false);
-					} else { // find in the closest set if there are nodes with less distance
-						BigInteger newdist = Util.distance(n, destNode);
-
-						// find the node with max distance
-						BigInteger maxdist = newdist;
-						BigInteger nodemaxdist = n;
-						for (BigInteger i : closestSet.keySet()) {
-							BigInteger dist = Util.distance(i, destNode);
-
-							if (dist.compareTo(maxdist) > 0) {
-								maxdist = dist;
-								nodemaxdist = i;
-							}
-						}
-						//将最长距离节点移除，并将新的neighbor加入closeSet
-						if (nodemaxdist.compareTo(n) != 0) {
-							closestSet.remove(nodemaxdist);
-							closestSet.put(n, false);
-						}
-					}
-				}
-			}
+		// add to closestSet (it keeps only the K closest nodes)
+		for (NodeId n : neighbours) {
+			if (n != null)
+				closestSet.add(n);
 		}
+	}
 
-		/*String s = "closestSet to " + destNode + "\n";
-		for (BigInteger clos : closestSet.keySet()) {
-			 s+= clos + "-";
-		}
-		System.out.println(s);*/
+	/**
+	 * update closestSet with the response of a node
+	 * 
+	 * @param from
+	 *            the node which answered
+	 * @param response
+	 *            the closest neighbours it knows and its remaining storage capacity
+	 */
+	public void elaborateResponse(NodeId from, RouteResponse response) {
+		closestSet.markQueried(from, response.capacity);
+		elaborateResponse(response.neighbours);
+	}
 
+	/**
+	 * the request sent to a node timed out: it will not be queried again and the request can be reused
+	 * 
+	 * @param node
+	 *            NodeId
+	 */
+	public void markFailed(NodeId node) {
+		closestSet.markFailed(node);
+		available_requests++;
+	}
+
+	/**
+	 * a request is slow (it passed its soft deadline): its slot is given back so that another node can be queried
+	 */
+	public void releaseRequest() {
+		available_requests++;
+	}
+
+	/**
+	 * a request released at the soft deadline has been answered or has failed: take its slot back, since answer and failure
+	 * release it again
+	 */
+	public void reclaimRequest() {
+		available_requests--;
 	}
 
 	/**
@@ -130,23 +151,12 @@ public class FindOperation {
 	 * 拿closeSet里面最近那个节点
 	 * @return the Id of the node or null if there aren't available node
 	 */
-	public BigInteger getNeighbour() {
+	public NodeId getNeighbour() {
 		// find closest neighbour ( the first not already queried)
-		BigInteger res = null;
-		for (BigInteger n : closestSet.keySet()) {
-			if (n != null && closestSet.get(n) == false) {
-				if (res == null) {
-					res = n;
-				} else if (Util.distance(n, destNode).compareTo(Util.distance(res, destNode)) < 0) {
-					res = n;
-				}
-			}
-		}
+		NodeId res = closestSet.nextUnqueried();
 
 		// Has been found a valid neighbour
 		if (res != null) {
-			closestSet.remove(res);
-			closestSet.put(res, true);
 			available_requests--; // decrease available request
 		}
 
@@ -3,11 +3,9 @@ package peersim;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Control;
-import peersim.core.Network;
 import peersim.core.Node;
 import peersim.edsim.EDSimulator;
 
-import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.UUID;
@@ -28,15 +26,24 @@ public class FindValueMessageGenerator implements Control {
 	 */
 	private final static String PAR_PROT = "protocol";
 
+	/**
+	 * number of values looked for at every call (default 1): more than one are looked for together through
+	 * KademliaProtocol.findValues()
+	 */
+	private final static String PAR_BATCH = "batch";
+
 	/**
 	 * MSPastry Protocol ID to act
 	 */
 	private final int pid;
 
+	private final int batch;
+
 
 	// ______________________________________________________________________________________________
 	public FindValueMessageGenerator(String prefix) {
 		pid = Configuration.getPid(prefix + "." + PAR_PROT);
+		batch = Configuration.getInt(prefix + "." + PAR_BATCH, 1);
 	}
 
     /**
@@ -46,15 +53,10 @@ public class FindValueMessageGenerator implements Control {
 	//______________________________________________________________________________________________
 	private Message generateFindValueMessage(){
 		if(StoreMessageGenerator.generateStoreVals != null && !StoreMessageGenerator.generateStoreVals.isEmpty()) {
-			String value = StoreMessageGenerator.generateStoreVals.get(new Random().nextInt(StoreMessageGenerator.generateStoreVals.size()));
-			BigInteger key = null;
-			try {
-				key = new BigInteger(SHA1.shaEncode(value), 16);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			NodeId key = generateKey();
 
-			Message m = Message.makeFindValue(value);
+			// the request carries the key the value is stored with
+			Message m = Message.makeFindValue(key);
 			m.timestamp = CommonState.getTime();
 			m.dest = key;
 
@@ -63,6 +65,18 @@ public class FindValueMessageGenerator implements Control {
 		return null;
 	}
 
+	// the key of a value already stored
+	private NodeId generateKey(){
+		String value = StoreMessageGenerator.generateStoreVals.get(new Random().nextInt(StoreMessageGenerator.generateStoreVals.size()));
+		NodeId key = null;
+		try {
+			key = NodeId.fromHex(SHA1.shaEncode(value));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return key;
+	}
+
 
 
 	// ______________________________________________________________________________________________
@@ -72,14 +86,20 @@ public class FindValueMessageGenerator implements Control {
 	 * @return boolean
 	 */
 	public boolean execute() {
-		Node start;
-		do {
-			start = Network.get(CommonState.r.nextInt(Network.size()));
-		} while ((start == null) || (!start.isUp()));
+		Node start = LiveNodes.random();
+		if (start == null)
+			return false;
 
 		// send message
 		if(StoreMessageGenerator.generateStoreVals != null && !StoreMessageGenerator.generateStoreVals.isEmpty()) {
-			EDSimulator.add(0, generateFindValueMessage(), start, pid);
+			if (batch > 1) {
+				NodeId[] keys = new NodeId[batch];
+				for (int i = 0; i < batch; i++)
+					keys[i] = generateKey();
+				((KademliaProtocol) start.getProtocol(pid)).findValues(keys, pid);
+			} else {
+				EDSimulator.add(0, generateFindValueMessage(), start, pid);
+			}
 		}
 
 		return false;
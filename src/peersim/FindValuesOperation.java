@@ -0,0 +1,85 @@
+package peersim;
+
+/**
+ * This class represents a batched find value: after a single lookup of the prefix shared by the keys, all the keys are asked in
+ * one message to every node of the converged closest set, which answers with the values it stores. A key is found with the
+ * first answer carrying its value; the operation ends when every key has been found, every node answered or at its deadline,
+ * whichever comes first.
+ */
+public class FindValuesOperation {
+
+	/**
+	 * id of the operation (the same of the lookup of the prefix)
+	 */
+	public final long operationId;
+
+	/**
+	 * the keys looked for
+	 */
+	public final NodeId[] keys;
+
+	/**
+	 * true for every key whose value has been found
+	 */
+	protected final boolean[] found;
+
+	/**
+	 * number of keys not found yet
+	 */
+	protected int remaining;
+
+	/**
+	 * Start timestamp of the operation (of the lookup)
+	 */
+	protected final long timestamp;
+
+	/**
+	 * number of requests of the lookup
+	 */
+	protected final int lookupHops;
+
+	/**
+	 * number of nodes asked, and number of nodes which answered
+	 */
+	protected int asked = 0;
+	protected int answers = 0;
+
+	/**
+	 * timer which ends the operation if some node does not answer in time (null until the nodes are asked)
+	 */
+	protected Timeout deadline = null;
+
+	public FindValuesOperation(long operationId, NodeId[] keys, long timestamp, int lookupHops) {
+		this.operationId = operationId;
+		this.keys = keys;
+		this.found = new boolean[keys.length];
+		this.remaining = keys.length;
+		this.timestamp = timestamp;
+		this.lookupHops = lookupHops;
+	}
+
+	/**
+	 * record that the value of a key has been found
+	 *
+	 * @param i
+	 *            index of the key
+	 * @return true if it had not been found yet
+	 */
+	public boolean found(int i) {
+		if (found[i])
+			return false;
+		found[i] = true;
+		remaining--;
+		return true;
+	}
+
+	/**
+	 * check if every key has been found or every node asked answered
+	 *
+	 * @return boolean
+	 */
+	public boolean completed() {
+		return remaining == 0 || answers >= asked;
+	}
+
+}
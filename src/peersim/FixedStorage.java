@@ -0,0 +1,17 @@
+package peersim;
+
+/**
+ * Storage engine which never evicts anything: a value is refused when it does not fit in the capacity left, until other values
+ * expire.
+ */
+public class FixedStorage extends BoundedStorage {
+
+	public FixedStorage(long capacity, long ttl) {
+		super(capacity, ttl);
+	}
+
+	protected Entry victim() {
+		return null;
+	}
+
+}
@@ -0,0 +1,156 @@
+package peersim;
+
+/**
+ * Fixed memory histogram of non negative long values (latencies, hop counts...), with logarithmic buckets as in HdrHistogram.<br>
+ * Values below 2 * SUB_BUCKETS are counted exactly; every larger power of two is split in SUB_BUCKETS buckets of the same width,
+ * so a percentile is reported with a relative error below 1 / SUB_BUCKETS whatever the magnitude of the values. Recording a
+ * value is a couple of shifts and an array increment, and no sample is kept.<br>
+ * Two histograms can be merged by summing their counts, so the results of several steps, runs or seeds can be aggregated.
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 6;
+
+	/**
+	 * number of buckets every power of two is split in
+	 */
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// enough buckets for any non negative long
+	private static final int LENGTH = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[LENGTH];
+
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+
+	// bucket of a value
+	private static int bucketOf(long v) {
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		if (msb <= SUB_BITS)
+			return (int) v;
+		int shift = msb - SUB_BITS;
+		return (shift << SUB_BITS) + (int) (v >>> shift);
+	}
+
+	// highest value counted in a bucket
+	private static long highestOf(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket >>> SUB_BITS) - 1;
+		long top = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * count a value
+	 *
+	 * @param value
+	 *            long, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[bucketOf(value)]++;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * add all the values counted by another histogram
+	 *
+	 * @param h
+	 *            Histogram
+	 */
+	public void merge(Histogram h) {
+		if (h.count == 0)
+			return;
+		for (int i = 0; i < LENGTH; i++)
+			counts[i] += h.counts[i];
+		count += h.count;
+		sum += h.sum;
+		min = Math.min(min, h.min);
+		max = Math.max(max, h.max);
+	}
+
+	/**
+	 * forget all the values
+	 */
+	public void reset() {
+		java.util.Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Value below which (or at which) the given percentage of the values lies, up to the bucket resolution
+	 *
+	 * @param p
+	 *            percentile, between 0 and 100
+	 * @return long, 0 if the histogram is empty
+	 */
+	public long percentile(double p) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < LENGTH; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestOf(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * number of values counted
+	 *
+	 * @return long
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the smallest value, 0 if the histogram is empty
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return the largest value, 0 if the histogram is empty
+	 */
+	public long getMax() {
+		return count == 0 ? 0 : max;
+	}
+
+	/**
+	 * @return the exact average of the values, 0 if the histogram is empty
+	 */
+	public double getAverage() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * the percentiles reported by the observer
+	 *
+	 * @return String
+	 */
+	public String percentiles() {
+		return String.format("p50=%d p90=%d p99=%d p99.9=%d", percentile(50), percentile(90), percentile(99), percentile(99.9));
+	}
+
+	public String toString() {
+		return String.format("n=%d min=%d avg=%.2f max=%d %s", count, getMin(), getAverage(), getMax(), percentiles());
+	}
+
+}
@@ -1,52 +1,105 @@
 package peersim;
 
-import java.math.BigInteger;
-import java.util.TreeMap;
-
 import peersim.core.CommonState;
 
 /**
- * This class implements a kademlia k-bucket. Function for the management of the neighbours update are also implemented
+ * This class implements a kademlia k-bucket. Function for the management of the neighbours update are also implemented.<br>
+ * The bucket is a small fixed-capacity array of K ids, with the time each neighbour has been last seen and its round trip time
+ * estimation (see RttEstimator) kept in parallel arrays of longs. Neighbours are kept in insertion order.
  * 
  * @author Daniele Furlan, Maurizio Bonani
  * @version 1.0
  */
 public class KBucket implements Cloneable {
 
-	// k-bucket array
-	protected TreeMap<BigInteger, Long> neighbours = null;
+	// k-bucket array (only the first "size" entries are valid)
+	protected NodeId[] neighbours = null;
+
+	// last time each neighbour has been seen
+	protected long[] lastSeen = null;
+
+	// round trip time estimation of each neighbour (packed, see RttEstimator)
+	protected long[] rtt = null;
+
+	// number of neighbours in the bucket
+	protected int size = 0;
 
 	// empty costructor
 	public KBucket() {
-		neighbours = new TreeMap<BigInteger, Long>();
+		neighbours = new NodeId[KademliaCommonConfig.K];
+		lastSeen = new long[KademliaCommonConfig.K];
+		rtt = new long[KademliaCommonConfig.K];
 	}
 
 	// add a neighbour to this k-bucket
-	public void addNeighbour(BigInteger node) {
+	public void addNeighbour(NodeId node) {
 		long time = CommonState.getTime();
-		if (neighbours.size() < KademliaCommonConfig.K) { // k-bucket isn't full
-			neighbours.put(node, time); // add neighbour to the tail of the list
+		int i = indexOf(node);
+		if (i >= 0) { // already known, refresh it
+			lastSeen[i] = time;
+		} else if (size < neighbours.length) { // k-bucket isn't full
+			neighbours[size] = node; // add neighbour to the tail of the list
+			lastSeen[size] = time;
+			rtt[size] = RttEstimator.NONE;
+			size++;
 		}
 	}
 
 	// remove a neighbour from this k-bucket
-	public void removeNeighbour(BigInteger node) {
-		neighbours.remove(node);
+	public void removeNeighbour(NodeId node) {
+		int i = indexOf(node);
+		if (i < 0)
+			return;
+		size--;
+		System.arraycopy(neighbours, i + 1, neighbours, i, size - i);
+		System.arraycopy(lastSeen, i + 1, lastSeen, i, size - i);
+		System.arraycopy(rtt, i + 1, rtt, i, size - i);
+		neighbours[size] = null;
+	}
+
+	// position of a neighbour in the bucket, -1 if not present
+	public int indexOf(NodeId node) {
+		for (int i = 0; i < size; i++) {
+			if (neighbours[i].equals(node))
+				return i;
+		}
+		return -1;
+	}
+
+	// number of neighbours in this k-bucket
+	public int size() {
+		return size;
+	}
+
+	// the i-th neighbour of this k-bucket
+	public NodeId get(int i) {
+		return neighbours[i];
+	}
+
+	// round trip time estimation of the i-th neighbour
+	public long getRtt(int i) {
+		return rtt[i];
+	}
+
+	// add a round trip time sample to the estimation of the i-th neighbour
+	public void updateRtt(int i, long sample) {
+		rtt[i] = RttEstimator.update(rtt[i], sample);
 	}
 
 	public Object clone() {
 		KBucket dolly = new KBucket();
-		for (BigInteger node : neighbours.keySet()) {
-			dolly.neighbours.put(new BigInteger(node.toByteArray()), 0l);
-		}
+		System.arraycopy(neighbours, 0, dolly.neighbours, 0, size);
+		System.arraycopy(lastSeen, 0, dolly.lastSeen, 0, size);
+		System.arraycopy(rtt, 0, dolly.rtt, 0, size);
+		dolly.size = size;
 		return dolly;
 	}
 
 	public String toString() {
 		String res = "{\n";
 
-		for (BigInteger node : neighbours.keySet()) {
-			res += node + "\n";
+		for (int i = 0; i < size; i++) {
+			res += neighbours[i] + "\n";
 		}
 
 		return res + "}";
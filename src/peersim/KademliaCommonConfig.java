@@ -13,6 +13,27 @@ public class KademliaCommonConfig {
 	public static int K = 20; // dimension of k-buckets (default is 20)
 	public static int ALPHA = 3; // number of simultaneous lookup (default is 3)
 
+	public static int TIMER_TICK = 10; // resolution of the request timeouts (default is 10)
+	public static int TIMER_SLOTS = 256; // number of slots of the timeout wheel of every node (default is 256)
+
+	public static int RTO_INIT = 1000; // request timeout before any round trip time has been measured (default is 1000)
+	public static boolean SOFT_TIMEOUT = false; // replace slow requests at their soft deadline (default is false)
+	public static int FIND_TIMEOUT = 60000; // max duration of a find operation, 0 for no limit (default is 60000)
+
+	public static int REPLICATION = 3; // number of nodes a value is stored on (default is 3)
+	public static int WRITE_QUORUM = 1; // acknowledgements needed for a store to succeed (default is 1)
+	public static int STORE_TIMEOUT = 10000; // time the replicas have to acknowledge a store, or to answer a batched find value (default is 10000)
+
+	public static String STORAGE = "fixed"; // store of the nodes: fixed (refuse values when full), lru or lfu (evict) (default is fixed)
+	public static long TTL = 0; // time to live of the stored values, 0 for no expiration (default is 0)
+
+	public static boolean CACHE_ON_PATH = false; // cache a value found at the closest node of the path without it (default is false)
+
+	public static boolean PROFILE = false; // measure the time spent in the event handlers (default is false)
+
+	public static boolean POOL = false; // reuse the Message and Timeout objects (default is false)
+	public static boolean POOL_DEBUG = false; // detect the use of released Message and Timeout objects (default is false)
+
 	/**
 	 * short information about current mspastry configuration
 	 * 
@@ -1,15 +1,13 @@
 package peersim;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.omg.PortableInterceptor.INACTIVE;
 import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
 import peersim.core.CommonState;
 import peersim.core.Control;
-import peersim.core.Network;
 import peersim.util.IncrementalStats;
 
 /**
@@ -40,11 +38,21 @@ public class KademliaObserver implements Control {
 	 */
 	public static IncrementalStats find_op = new IncrementalStats();
 
+	/**
+	 * keep statistic of number of find operation aborted because they did not converge in time
+	 */
+	public static IncrementalStats find_aborted = new IncrementalStats();
+
 	/**
 	 * keep statistic of number of  successful store message,表示成功存储的kv个数(ps:成功存储到一个节点就算成功存储)
 	 */
 	public static IncrementalStats stored_msg = new IncrementalStats();
 
+	/**
+	 * keep statistic of number of store operations which did not reach the write quorum
+	 */
+	public static IncrementalStats store_failed = new IncrementalStats();
+
 	public static IncrementalStats real_store_operation = new IncrementalStats();
 
 
@@ -55,9 +63,24 @@ public class KademliaObserver implements Control {
 
 	public static IncrementalStats sendstore_resp = new IncrementalStats();
 	/**
-	 * 过载节点的个数
+	 * 过载节点的个数 (nodes up which refused at least a store because they were full, counted again at every step)
 	 */
 	public static IncrementalStats overloadNode = new IncrementalStats();
+
+	/**
+	 * number of messages sent, by message type
+	 */
+	public static long[] msg_sent = new long[Message.MSG_TYPES];
+
+	/**
+	 * number of bytes sent (wire size of the messages), by message type
+	 */
+	public static long[] bytes_sent = new long[Message.MSG_TYPES];
+
+	/**
+	 * number of messages received, by message type
+	 */
+	public static long[] msg_received = new long[Message.MSG_TYPES];
 	/**
 	 * keep statistic of number of  find value success,表示成功find value的次数
 	 */
@@ -68,20 +91,110 @@ public class KademliaObserver implements Control {
 	 */
 	public static IncrementalStats findVal_times = new IncrementalStats();
 
+	/**
+	 * keep statistics of the number of hops of every find value which found the value
+	 */
+	public static IncrementalStats findVal_hops = new IncrementalStats();
+
+	/**
+	 * number of values cached on the path of a find value
+	 */
+	public static IncrementalStats cached_values = new IncrementalStats();
+
+	/**
+	 * distribution of the number of hops of the messages delivered since the last step
+	 */
+	public static Histogram hopHist = new Histogram();
+
+	/**
+	 * distribution of the time of the messages delivered since the last step
+	 */
+	public static Histogram timeHist = new Histogram();
+
+	/**
+	 * distribution of the time needed to store a kv (until the write quorum is reached) since the last step
+	 */
+	public static Histogram storeTimeHist = new Histogram();
+
+	/**
+	 * distribution of the time needed to find a value since the last step
+	 */
+	public static Histogram findValTimeHist = new Histogram();
+
+	/**
+	 * distribution of the time spent by the messages in the queues and on the wire of the links since the last step (only with a
+	 * BandwidthTransport)
+	 */
+	public static Histogram linkDelayHist = new Histogram();
+
+	/**
+	 * the same distributions since the beginning of the simulation
+	 */
+	public static Histogram hopHistAll = new Histogram();
+	public static Histogram timeHistAll = new Histogram();
+	public static Histogram storeTimeHistAll = new Histogram();
+	public static Histogram findValTimeHistAll = new Histogram();
+	public static Histogram linkDelayHistAll = new Histogram();
 
 
 	/** Parameter of the protocol we want to observe */
 	private static final String PAR_PROT = "protocol";
 
+	/** File the metrics of every step are streamed to (optional) */
+	private static final String PAR_METRICS = "metrics";
+
+	/** Format of the metrics file: csv (default) or jsonl */
+	private static final String PAR_FORMAT = "format";
+
+	/** Comma separated fields written to the metrics file (default all) */
+	private static final String PAR_FIELDS = "fields";
+
+	/** Number of steps between two flushes of the metrics file (default 1) */
+	private static final String PAR_FLUSH = "flush";
+
+	/** Number of most loaded nodes reported (default 5) */
+	private static final String PAR_TOP = "top";
+
 	/** Protocol id */
 	private int pid;
 
 	/** Prefix to be printed in output */
 	private String prefix;
 
+	/** Metrics file, null if not configured */
+	private MetricsSink sink = null;
+
+	/** Number of most loaded nodes reported */
+	private int top;
+
 	public KademliaObserver(String prefix) {
 		this.prefix = prefix;
 		pid = Configuration.getPid(prefix + "." + PAR_PROT);
+		top = Configuration.getInt(prefix + "." + PAR_TOP, 5);
+
+		String path = Configuration.getString(prefix + "." + PAR_METRICS, null);
+		if (path != null) {
+			String fields = Configuration.getString(prefix + "." + PAR_FIELDS, null);
+			try {
+				sink = new MetricsSink(path, Configuration.getString(prefix + "." + PAR_FORMAT, MetricsSink.CSV),
+						fields == null ? null : fields.trim().split("\\s*,\\s*"), Configuration.getInt(prefix + "." + PAR_FLUSH, 1));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalParameterException(prefix + "." + PAR_FORMAT, e.getMessage());
+			} catch (IOException e) {
+				throw new IllegalParameterException(prefix + "." + PAR_METRICS, e.getMessage());
+			}
+
+			// the records still in the buffer are written when the simulation ends
+			final MetricsSink s = sink;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						s.close();
+					} catch (IOException e) {
+					}
+				}
+			});
+		}
 	}
 
 	/**
@@ -91,38 +204,154 @@ public class KademliaObserver implements Control {
 	 */
 	public boolean execute() {
 		// get the real network size
-		int sz = Network.size();
-		for (int i = 0; i < Network.size(); i++)
-			if (!Network.get(i).isUp())
-				sz--;
+		int sz = LiveNodes.size();
 
-		String s = String.format("[time=%d]:[N=%d current nodes UP] [D=%f msg deliv] [%f min h] [%f average h] [%f max h] [%d min l] [%d msec average l] [%d max l] [%d findop sum] [%d sendstore_resp sum]  [%d storedMsg sum]  [%d sendtostore_msg sum] [%d findValueSuccess sum] [%d findValueTimes][%d realStoreOperation]",
-				CommonState.getTime(), sz, msg_deliv.getSum(),hopStore.getMin(), hopStore.getAverage(), hopStore.getMax(), (int) timeStore.getMin(), (int) timeStore.getAverage(), (int) timeStore.getMax(),(int)find_op.getSum(),(int)sendstore_resp.getSum(),(int)stored_msg.getSum(),(int)sendtostore_msg.getSum(),(int)findVal_success.getSum(),(int)findVal_times.getSum(),(int)real_store_operation.getSum());
+		String s = String.format("[time=%d]:[N=%d current nodes UP] [D=%f msg deliv] [%f min h] [%f average h] [%f max h] [%d min l] [%d msec average l] [%d max l] [%d findop sum] [%d findop aborted] [%d sendstore_resp sum]  [%d storedMsg sum] [%d storeFailed sum]  [%d sendtostore_msg sum] [%d findValueSuccess sum] [%d findValueTimes] [%f findValue average h] [%d cached][%d realStoreOperation]",
+				CommonState.getTime(), sz, msg_deliv.getSum(),hopStore.getMin(), hopStore.getAverage(), hopStore.getMax(), (int) timeStore.getMin(), (int) timeStore.getAverage(), (int) timeStore.getMax(),(int)find_op.getSum(),(int)find_aborted.getSum(),(int)sendstore_resp.getSum(),(int)stored_msg.getSum(),(int)store_failed.getSum(),(int)sendtostore_msg.getSum(),(int)findVal_success.getSum(),(int)findVal_times.getSum(),findVal_hops.getAverage(),(int)cached_values.getSum(),(int)real_store_operation.getSum());
 
-		if (CommonState.getTime() == 3600000) {
-			// create hop file
-			try {
-				File f = new File("H:/simulazioni/hopcountNEW.dat"); // " + sz + "
-				f.createNewFile();
-				BufferedWriter out = new BufferedWriter(new FileWriter(f, true));
-				out.write(String.valueOf(hopStore.getAverage()).replace(".", ",") + ";\n");
-				out.close();
-			} catch (IOException e) {
+		// load of the nodes up
+		long[] in = new long[sz];
+		long[] out = new long[sz];
+		long[] stored = new long[sz];
+		long[] bytes = new long[sz];
+		long hits = 0, misses = 0, evictions = 0, expirations = 0;
+		long[] ids = new long[sz];
+		overloadNode.reset();
+		for (int j = 0; j < sz; j++) {
+			KademliaProtocol kp = (KademliaProtocol) LiveNodes.get(j).getProtocol(pid);
+			in[j] = kp.msgIn;
+			out[j] = kp.msgOut;
+			stored[j] = kp.storedBytes();
+			bytes[j] = kp.bytesOut;
+			StorageEngine storage = kp.getStorage();
+			hits += storage.getHits();
+			misses += storage.getMisses();
+			evictions += storage.getEvictions();
+			expirations += storage.getExpirations();
+			ids[j] = LiveNodes.get(j).getID();
+			if (kp.storeRefused > 0)
+				overloadNode.add(1);
+		}
+		LoadDistribution inLoad = new LoadDistribution(in, sz, top);
+		LoadDistribution outLoad = new LoadDistribution(out, sz, top);
+		LoadDistribution storedLoad = new LoadDistribution(stored, sz, top);
+		LoadDistribution bytesLoad = new LoadDistribution(bytes, sz, top);
+		String hot = "";
+		for (int i : inLoad.top)
+			hot += (hot.isEmpty() ? "" : " ") + ids[i] + ":" + in[i];
+		s += String.format(" [in %s] [out %s] [stored %s] [%d overloaded] [hot nodes %s]", inLoad, outLoad, storedLoad,
+				(int) overloadNode.getSum(), hot);
+		String byType = "";
+		for (int i = 0; i < Message.MSG_TYPES; i++) {
+			if (bytes_sent[i] > 0)
+				byType += " " + Message.messageTypetoString(i) + ":" + bytes_sent[i];
+		}
+		s += String.format(" [bytes out %s] [bytes by type%s]", bytesLoad, byType);
+		double hitRate = hits + misses == 0 ? Double.NaN : (double) hits / (hits + misses);
+		s += String.format(" [storage hits=%d misses=%d hit rate=%.3f evicted=%d expired=%d]", hits, misses, hitRate, evictions,
+				expirations);
+
+		// the step distributions are added to the cumulative ones
+		hopHistAll.merge(hopHist);
+		timeHistAll.merge(timeHist);
+		storeTimeHistAll.merge(storeTimeHist);
+		findValTimeHistAll.merge(findValTimeHist);
+		linkDelayHistAll.merge(linkDelayHist);
+		s += String.format(" [hops %s (all %s)] [latency %s (all %s)] [store time %s (all %s)] [findValue time %s (all %s)]",
+				hopHist.percentiles(), hopHistAll.percentiles(), timeHist.percentiles(), timeHistAll.percentiles(),
+				storeTimeHist.percentiles(), storeTimeHistAll.percentiles(), findValTimeHist.percentiles(), findValTimeHistAll.percentiles());
+		if (linkDelayHistAll.getCount() > 0)
+			s += String.format(" [link delay %s (all %s)]", linkDelayHist.percentiles(), linkDelayHistAll.percentiles());
+
+		if (sink != null) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("time", CommonState.getTime());
+			record.put("nodes_up", sz);
+			record.put("msg_deliv", (long) msg_deliv.getSum());
+			record.put("hops_min", hopStore.getMin());
+			record.put("hops_avg", hopStore.getAverage());
+			record.put("hops_max", hopStore.getMax());
+			record.put("latency_min", timeStore.getMin());
+			record.put("latency_avg", timeStore.getAverage());
+			record.put("latency_max", timeStore.getMax());
+			record.put("findop", (long) find_op.getSum());
+			record.put("findop_aborted", (long) find_aborted.getSum());
+			record.put("sendstore_resp", (long) sendstore_resp.getSum());
+			record.put("stored_msg", (long) stored_msg.getSum());
+			record.put("store_failed", (long) store_failed.getSum());
+			record.put("sendtostore_msg", (long) sendtostore_msg.getSum());
+			record.put("findvalue_success", (long) findVal_success.getSum());
+			record.put("findvalue_times", (long) findVal_times.getSum());
+			record.put("findvalue_hops_avg", findVal_hops.getAverage());
+			record.put("cached_values", (long) cached_values.getSum());
+			record.put("real_store_operation", (long) real_store_operation.getSum());
+			for (int i = 0; i < Message.MSG_TYPES; i++) {
+				String type = Message.messageTypetoString(i).toLowerCase();
+				record.put(type + "_sent", msg_sent[i]);
+				record.put(type + "_received", msg_received[i]);
+				record.put(type + "_bytes", bytes_sent[i]);
+			}
+			putLoad(record, "in", inLoad);
+			putLoad(record, "out", outLoad);
+			putLoad(record, "stored", storedLoad);
+			putLoad(record, "bytes_out", bytesLoad);
+			record.put("overloaded_nodes", (long) overloadNode.getSum());
+			record.put("storage_hits", hits);
+			record.put("storage_misses", misses);
+			record.put("storage_hit_rate", hitRate);
+			record.put("storage_evictions", evictions);
+			record.put("storage_expirations", expirations);
+			record.put("hot_nodes", hot);
+			if (KademliaCommonConfig.POOL) {
+				record.put("pool_reused", EventPool.getReused());
+				record.put("pool_allocated", EventPool.getAllocated());
 			}
-			// create latency file
+			putPercentiles(record, "hops", hopHist, hopHistAll);
+			putPercentiles(record, "latency", timeHist, timeHistAll);
+			putPercentiles(record, "store_time", storeTimeHist, storeTimeHistAll);
+			putPercentiles(record, "findvalue_time", findValTimeHist, findValTimeHistAll);
+			putPercentiles(record, "link_delay", linkDelayHist, linkDelayHistAll);
 			try {
-				File f = new File("H:/simulazioni/latencyNEW.dat");
-				f.createNewFile();
-				BufferedWriter out = new BufferedWriter(new FileWriter(f, true));
-				out.write(String.valueOf(timeStore.getAverage()).replace(".", ",") + ";\n");
-				out.close();
+				sink.write(record);
 			} catch (IOException e) {
+				Log.error("can not write the metrics: " + e.getMessage());
+				sink = null;
 			}
-
 		}
 
+		// the step distributions restart
+		hopHist.reset();
+		timeHist.reset();
+		storeTimeHist.reset();
+		findValTimeHist.reset();
+		linkDelayHist.reset();
+
 		System.err.println(s);
+		if (KademliaCommonConfig.PROFILE)
+			System.err.println(String.format("[time=%d]:profile: %s", CommonState.getTime(), EventProfiler.step()));
+		if (KademliaCommonConfig.POOL)
+			System.err.println(String.format("[time=%d]:pool: [%d reused] [%d allocated]", CommonState.getTime(),
+					EventPool.getReused(), EventPool.getAllocated()));
 
 		return false;
 	}
+
+	// add the summary of a load distribution to a record
+	private static void putLoad(Map<String, Object> record, String name, LoadDistribution load) {
+		record.put(name + "_max", load.max);
+		record.put(name + "_avg", load.average);
+		record.put(name + "_gini", load.gini);
+	}
+
+	// add the percentiles of a step distribution and of the cumulative one to a record
+	private static void putPercentiles(Map<String, Object> record, String name, Histogram step, Histogram all) {
+		record.put(name + "_p50", step.percentile(50));
+		record.put(name + "_p90", step.percentile(90));
+		record.put(name + "_p99", step.percentile(99));
+		record.put(name + "_p999", step.percentile(99.9));
+		record.put(name + "_all_p50", all.percentile(50));
+		record.put(name + "_all_p90", all.percentile(90));
+		record.put(name + "_all_p99", all.percentile(99));
+		record.put(name + "_all_p999", all.percentile(99.9));
+	}
 }
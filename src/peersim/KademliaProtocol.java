@@ -9,16 +9,16 @@ package peersim;
  * @version 1.0
  */
 
-import java.math.BigInteger;
+import java.io.IOException;
 import java.util.*;
 
 import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
 import peersim.core.CommonState;
-import peersim.core.Network;
 import peersim.core.Node;
 import peersim.edsim.EDProtocol;
 import peersim.edsim.EDSimulator;
-import peersim.transport.UnreliableTransport;
+import peersim.transport.Transport;
 
 //__________________________________________________________________________________________________
 public class KademliaProtocol implements Cloneable, EDProtocol {
@@ -27,10 +27,26 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	final String PAR_K = "K";
 	final String PAR_ALPHA = "ALPHA";
 	final String PAR_BITS = "BITS";
+	final String PAR_TIMER_TICK = "TIMER_TICK";
+	final String PAR_TIMER_SLOTS = "TIMER_SLOTS";
+	final String PAR_RTO_INIT = "RTO_INIT";
+	final String PAR_SOFT_TIMEOUT = "SOFT_TIMEOUT";
+	final String PAR_FIND_TIMEOUT = "FIND_TIMEOUT";
+	final String PAR_LOG_LEVEL = "LOG_LEVEL";
+	final String PAR_LOG_FILE = "LOG_FILE";
+	final String PAR_REPLICATION = "REPLICATION";
+	final String PAR_WRITE_QUORUM = "WRITE_QUORUM";
+	final String PAR_STORE_TIMEOUT = "STORE_TIMEOUT";
+	final String PAR_CACHE_ON_PATH = "CACHE_ON_PATH";
+	final String PAR_PROFILE = "PROFILE";
+	final String PAR_STORAGE = "STORAGE";
+	final String PAR_TTL = "TTL";
+	final String PAR_POOL = "POOL";
+	final String PAR_POOL_DEBUG = "POOL_DEBUG";
 
 	private static final String PAR_TRANSPORT = "transport";
 	private static String prefix = null;
-	private UnreliableTransport transport;
+	private Transport transport;
 	private int tid;
 	private int kademliaid;
 
@@ -42,7 +58,7 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	/**
 	 * nodeId of this pastry node
 	 */
-	public BigInteger nodeId;
+	public NodeId nodeId;
 
 	/**
 	 * routing table of this pastry node
@@ -50,39 +66,47 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	public RoutingTable routingTable;
 
 	/**
-	 * trace message sent for timeout purpose
+	 * trace message sent for timeout purpose: pending requests, by message id
 	 */
-	private TreeMap<Long, Long> sentMsg;
+	private LongHashMap<Timeout> sentMsg;
 
 	/**
-	 * find operations set
+	 * timeouts of the pending requests
 	 */
-	private LinkedHashMap<Long, FindOperation> findOp;
+	private TimerWheel timers;
 
 	/**
-	 * Node store
+	 * round trip time estimation over all the contacts (packed, see RttEstimator), used for contacts never measured
 	 */
-	private TreeMap<BigInteger,Object> storeMap;
+	private long rtt = RttEstimator.NONE;
 
 	/**
-	 * send sth to store map <value,store times>
+	 * find operations set
 	 */
-	private Map<String,Integer>  storeTimesMap;
-
-	private boolean storeSucceedFlag = false;
+	private LinkedHashMap<Long, FindOperation> findOp;
 
 	/**
-	 * node store capacity
+	 * Node store, indexed by key (see STORAGE)
 	 */
-	private int storeCapacity;
+	private StorageEngine storeMap;
+
 	/**
-	 * 存节点发来的存储容量，排序后再发STORE
+	 * store operations waiting for the acknowledgements of their replicas, by operation id
 	 */
-	private Map<BigInteger,Integer> nodeSpace;
+	private LongHashMap<StoreOperation> storeOps;
 
-	private List<String> receivedVals;
+	/**
+	 * batched find values waiting for the answers of the closest nodes, by operation id
+	 */
+	private LongHashMap<FindValuesOperation> findValuesOps;
 
-	private List<String> findVals;
+	/**
+	 * load of this node: messages received and sent, bytes sent, bytes stored, stores refused because the node was full
+	 */
+	long msgIn = 0;
+	long msgOut = 0;
+	long bytesOut = 0;
+	long storeRefused = 0;
 
 	/**
 	 * Replicate this object by returning an identical copy.<br>
@@ -109,7 +133,7 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 				", sentMsg=" + sentMsg +
 				", findOp=" + findOp +
 				", storeMap=" + storeMap +
-				", storeCapacity=" + storeCapacity +
+				", free=" + storeMap.free() +
 				'}';
 	}
 
@@ -127,29 +151,42 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 
 		routingTable = new RoutingTable();
 
-		sentMsg = new TreeMap<Long, Long>();
+		sentMsg = new LongHashMap<Timeout>();
 
-		findOp = new LinkedHashMap<Long, FindOperation>();
+		timers = new TimerWheel(KademliaCommonConfig.TIMER_SLOTS, KademliaCommonConfig.TIMER_TICK);
 
-		storeMap = new TreeMap<>();
-
-		receivedVals = new ArrayList<>();
-
-		findVals = new ArrayList<>();
-
-		storeTimesMap = new HashMap<>();
+		findOp = new LinkedHashMap<Long, FindOperation>();
 
-		nodeSpace = new TreeMap<>();
+		storeOps = new LongHashMap<StoreOperation>();
+		findValuesOps = new LongHashMap<FindValuesOperation>();
 
 		//给每个节点随机分配存储容量，为下面三个中之一
 		int[] arr = {100,500,1000};
 //		int[] arr = {500};
 		int rand = (int)(Math.random() * arr.length);
-		storeCapacity = arr[rand];
+		storeMap = newStorage(arr[rand]);
 
 		tid = Configuration.getPid(prefix + "." + PAR_TRANSPORT);
 	}
 
+	/**
+	 * create the store of a node, of the type chosen by STORAGE
+	 *
+	 * @param capacity
+	 *            bytes
+	 * @return StorageEngine
+	 */
+	private static StorageEngine newStorage(long capacity) {
+		switch (KademliaCommonConfig.STORAGE) {
+			case "lru":
+				return new LruStorage(capacity, KademliaCommonConfig.TTL);
+			case "lfu":
+				return new LfuStorage(capacity, KademliaCommonConfig.TTL);
+			default:
+				return new FixedStorage(capacity, KademliaCommonConfig.TTL);
+		}
+	}
+
 	/**
 	 * This procedure is called only once and allow to inizialize the internal state of KademliaProtocol. Every node shares the
 	 * same configuration, so it is sufficient to call this routine once.
@@ -163,49 +200,58 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 		KademliaCommonConfig.K = Configuration.getInt(prefix + "." + PAR_K, KademliaCommonConfig.K);
 		KademliaCommonConfig.ALPHA = Configuration.getInt(prefix + "." + PAR_ALPHA, KademliaCommonConfig.ALPHA);
 		KademliaCommonConfig.BITS = Configuration.getInt(prefix + "." + PAR_BITS, KademliaCommonConfig.BITS);
+		if (KademliaCommonConfig.BITS < 1 || KademliaCommonConfig.BITS > NodeId.MAX_BITS)
+			throw new IllegalParameterException(prefix + "." + PAR_BITS, "ids must be between 1 and " + NodeId.MAX_BITS + " bits long");
+		KademliaCommonConfig.TIMER_TICK = Configuration.getInt(prefix + "." + PAR_TIMER_TICK, KademliaCommonConfig.TIMER_TICK);
+		if (KademliaCommonConfig.TIMER_TICK < 1)
+			throw new IllegalParameterException(prefix + "." + PAR_TIMER_TICK, "the timer resolution must be at least 1");
+		KademliaCommonConfig.TIMER_SLOTS = Configuration.getInt(prefix + "." + PAR_TIMER_SLOTS, KademliaCommonConfig.TIMER_SLOTS);
+		if (KademliaCommonConfig.TIMER_SLOTS < 1)
+			throw new IllegalParameterException(prefix + "." + PAR_TIMER_SLOTS, "the timer wheel must have at least 1 slot");
+		KademliaCommonConfig.RTO_INIT = Configuration.getInt(prefix + "." + PAR_RTO_INIT, KademliaCommonConfig.RTO_INIT);
+		KademliaCommonConfig.SOFT_TIMEOUT = Configuration.getBoolean(prefix + "." + PAR_SOFT_TIMEOUT, KademliaCommonConfig.SOFT_TIMEOUT);
+		KademliaCommonConfig.FIND_TIMEOUT = Configuration.getInt(prefix + "." + PAR_FIND_TIMEOUT, KademliaCommonConfig.FIND_TIMEOUT);
+		KademliaCommonConfig.REPLICATION = Configuration.getInt(prefix + "." + PAR_REPLICATION, KademliaCommonConfig.REPLICATION);
+		if (KademliaCommonConfig.REPLICATION < 1)
+			throw new IllegalParameterException(prefix + "." + PAR_REPLICATION, "a value must be stored on at least one node");
+		KademliaCommonConfig.WRITE_QUORUM = Configuration.getInt(prefix + "." + PAR_WRITE_QUORUM, KademliaCommonConfig.WRITE_QUORUM);
+		if (KademliaCommonConfig.WRITE_QUORUM < 1 || KademliaCommonConfig.WRITE_QUORUM > KademliaCommonConfig.REPLICATION)
+			throw new IllegalParameterException(prefix + "." + PAR_WRITE_QUORUM, "the quorum must be between 1 and " + PAR_REPLICATION);
+		KademliaCommonConfig.STORE_TIMEOUT = Configuration.getInt(prefix + "." + PAR_STORE_TIMEOUT, KademliaCommonConfig.STORE_TIMEOUT);
+		KademliaCommonConfig.CACHE_ON_PATH = Configuration.getBoolean(prefix + "." + PAR_CACHE_ON_PATH, KademliaCommonConfig.CACHE_ON_PATH);
+		KademliaCommonConfig.PROFILE = Configuration.getBoolean(prefix + "." + PAR_PROFILE, KademliaCommonConfig.PROFILE);
+		KademliaCommonConfig.STORAGE = Configuration.getString(prefix + "." + PAR_STORAGE, KademliaCommonConfig.STORAGE).toLowerCase();
+		if (!Arrays.asList("fixed", "lru", "lfu").contains(KademliaCommonConfig.STORAGE))
+			throw new IllegalParameterException(prefix + "." + PAR_STORAGE, "the storage must be fixed, lru or lfu");
+		KademliaCommonConfig.TTL = Configuration.getLong(prefix + "." + PAR_TTL, KademliaCommonConfig.TTL);
+		if (KademliaCommonConfig.PROFILE)
+			EventProfiler.start();
+		KademliaCommonConfig.POOL = Configuration.getBoolean(prefix + "." + PAR_POOL, KademliaCommonConfig.POOL);
+		KademliaCommonConfig.POOL_DEBUG = Configuration.getBoolean(prefix + "." + PAR_POOL_DEBUG, KademliaCommonConfig.POOL_DEBUG);
+		EventPool.clear();
+
+		// logging (per message tracing is at DEBUG level, off by default)
+		String logFile = Configuration.getString(prefix + "." + PAR_LOG_FILE, null);
+		try {
+			Log.configure(Configuration.getString(prefix + "." + PAR_LOG_LEVEL, "WARN"), logFile);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalParameterException(prefix + "." + PAR_LOG_LEVEL, e.getMessage());
+		} catch (IOException e) {
+			throw new IllegalParameterException(prefix + "." + PAR_LOG_FILE, e.getMessage());
+		}
 
 		_ALREADY_INSTALLED = true;
 	}
 
 	/**
-	 * Search through the network the Node having a specific node Id, by performing binary search (we concern about the ordering
-	 * of the network).
-	 * 二分查找找某节点
+	 * Search through the network the Node having a specific node Id, using the network-wide NodeIndex (constant time, the
+	 * ordering of the network does not matter).
 	 * @param searchNodeId
-	 *            BigInteger
+	 *            NodeId
 	 * @return Node
 	 */
-	private Node nodeIdtoNode(BigInteger searchNodeId) {
-		if (searchNodeId == null)
-			return null;
-
-		int inf = 0;
-		int sup = Network.size() - 1;
-		int m;
-
-		while (inf <= sup) {
-			m = (inf + sup) / 2;
-
-			BigInteger mId = ((KademliaProtocol) Network.get(m).getProtocol(kademliaid)).nodeId;
-
-			if (mId.equals(searchNodeId))
-				return Network.get(m);
-
-			if (mId.compareTo(searchNodeId) < 0)
-				inf = m + 1;
-			else
-				sup = m - 1;
-		}
-
-		// perform a traditional search for more reliability (maybe the network is not ordered)
-		BigInteger mId;
-		for (int i = Network.size() - 1; i >= 0; i--) {
-			mId = ((KademliaProtocol) Network.get(i).getProtocol(kademliaid)).nodeId;
-			if (mId.equals(searchNodeId))
-				return Network.get(i);
-		}
-
-		return null;
+	private Node nodeIdtoNode(NodeId searchNodeId) {
+		return NodeIndex.get(searchNodeId);
 	}
 
 	/**
@@ -217,10 +263,12 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	 *
 	 * @param m
 	 *            Message
+	 * @param response
+	 *            the body of the message
 	 * @param myPid
 	 *            the sender Pid
 	 */
-	private void route(Message m, int myPid) {
+	private void route(Message m, RouteResponse response, int myPid) {
 		// add message source to my routing table
 		if (m.src != null) {
 			routingTable.addNeighbour(m.src);//将发送resp的节点加到路由表
@@ -231,70 +279,271 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 
 		if (fop != null) {
 			// save received neighbor in the closest Set of find operation
-			try {
-				fop.elaborateResponse((BigInteger[]) m.body);//m.body中节点已知的k个离目标最近节点，用这些节点更新fop的closeSet
-			} catch (Exception ex) {
-				fop.available_requests++;
-			}
+			fop.elaborateResponse(m.src, response);//m.body中节点已知的k个离目标最近节点，用这些节点更新fop的closeSet
 
-			while (fop.available_requests > 0) { // I can send a new find request还能再发路由请求
-
-				// get an available neighbor
-				BigInteger neighbour = fop.getNeighbour();
-
-				if (neighbour != null) {
-					// create a new request to send to neighbor
-					Message request = new Message(Message.MSG_ROUTE);
-					request.operationId = m.operationId;
-					request.src = this.nodeId;
-					request.dest = m.dest;
-
-					// increment hop count
-					fop.nrHops++;
-
-					// send find request
-					sendMessage(request, neighbour, myPid);
-				} else if (fop.available_requests == KademliaCommonConfig.ALPHA) { // no new neighbor and no outstanding requests
-					// search operation finished
-					findOp.remove(fop.operationId);
-					//随机生成的FIND_NODE消息
-					if (fop.body.equals("Automatically Generated Traffic") && fop.closestSet.containsKey(fop.destNode)) {
-						// update statistics
-						long timeInterval = (CommonState.getTime()) - (fop.timestamp);
-						KademliaObserver.timeStore.add(timeInterval);
-						KademliaObserver.hopStore.add(fop.nrHops);
-						KademliaObserver.msg_deliv.add(1);
-					}else if(fop.body instanceof  StoreFile){  //add store to closeset
-						for (BigInteger node: fop.closestSet.keySet()) {
-							Message storeSpaceReqMsg = new Message(Message.MSG_STORE_SPACE_REQ,fop.body);
-							storeSpaceReqMsg.src =  this.nodeId;
-							storeSpaceReqMsg.dest = node;
-							storeSpaceReqMsg.operationId = m.operationId;
-							sendMessage(storeSpaceReqMsg,node,myPid);
-//							System.out.println("send space ask msg to node:"+node);
-						}
-					}else if(fop.body instanceof String){
-						for (BigInteger node: fop.closestSet.keySet()
-								) {
-							Message findValMsg = new Message(Message.MSG_FINDVALUE,fop.body);
-							findValMsg.src = this.nodeId;
-							findValMsg.dest = node;
-							findValMsg.operationId = m.operationId;
-							sendMessage(findValMsg,node,myPid);
-						}
-					}
-
-					return;
-
-				} else { // no neighbor available but exists oustanding request to wait
-					return;
-				}
+			sendRequests(fop, myPid);
+		} else {
+			Log.error("There has been some error in the protocol");
+		}
+	}
+
+	/**
+	 * Send as many ROUTE request as allowed (according to the ALPHA parameter) to the closest nodes not queried yet.<br>
+	 * If no closest neighbor available and no outstanding messages stop the find operation.
+	 *
+	 * @param fop
+	 *            the find operation
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void sendRequests(FindOperation fop, int myPid) {
+		while (fop.available_requests > 0) { // I can send a new find request还能再发路由请求
+
+			// get an available neighbor
+			NodeId neighbour = fop.getNeighbour();
+
+			if (neighbour != null) {
+				// create a new request to send to neighbor
+				Message request = EventPool.message(fop.requestType, null);
+				request.operationId = fop.operationId;
+				request.src = this.nodeId;
+				request.dest = fop.destNode;
+
+				// increment hop count
+				fop.nrHops++;
+
+				// send find request
+				sendMessage(request, neighbour, myPid);
+			} else if (fop.available_requests == KademliaCommonConfig.ALPHA && fop.pending.isEmpty()) {
+				// no new neighbor and no outstanding requests (a slow request gives its slot back, but may still answer):
+				// search operation finished
+				finishFind(fop, false, myPid);
+				return;
+
+			} else { // no neighbor available but exists oustanding request to wait
+				return;
 			}
+		}
+	}
+
+	/**
+	 * End a find operation, either because it converged or because it has been aborted, releasing everything associated to it
+	 * (pending requests and their timers, deadline) and then calling the corresponding callback.
+	 *
+	 * @param fop
+	 *            the find operation
+	 * @param aborted
+	 *            true if the operation did not converge
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void finishFind(FindOperation fop, boolean aborted, int myPid) {
+		findOp.remove(fop.operationId);
+
+		if (fop.deadline != null) {
+			timers.cancel(fop.deadline);
+			EventPool.release(fop.deadline);
+			fop.deadline = null;
+		}
+		for (Timeout t : fop.pending) {
+			sentMsg.remove(t.msgID);
+			timers.cancel(t);
+			EventPool.release(t);
+		}
+		fop.pending.clear();
+
+		if (aborted) {
+			KademliaObserver.find_aborted.add(1);
+			onFindAborted(fop, myPid);
 		} else {
-			System.err.println("There has been some error in the protocol");
+			onFindCompleted(fop, myPid);
 		}
 	}
 
+	/**
+	 * Callback of a find operation which converged: the closest set contains the K closest nodes to the destination.
+	 *
+	 * @param fop
+	 *            the find operation
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	protected void onFindCompleted(FindOperation fop, int myPid) {
+		//随机生成的FIND_NODE消息
+		if ("Automatically Generated Traffic".equals(fop.body) && fop.closestSet.contains(fop.destNode)) {
+			// update statistics
+			long timeInterval = (CommonState.getTime()) - (fop.timestamp);
+			KademliaObserver.timeStore.add(timeInterval);
+			KademliaObserver.hopStore.add(fop.nrHops);
+			KademliaObserver.timeHist.record(timeInterval);
+			KademliaObserver.hopHist.record(fop.nrHops);
+			KademliaObserver.msg_deliv.add(1);
+		}else if(fop.body instanceof  StoreFile || fop.body instanceof StoreFile[]){  //add store to closeset
+			startStore(fop, myPid);
+		}else if(fop.body instanceof NodeId[]){ // batched find value: ask the keys to the closest nodes
+			startFindValues(fop, myPid);
+		}else if(fop.requestType == Message.MSG_FINDVALUE){
+			if (fop.value != null) {
+				KademliaObserver.findVal_success.add(1);
+				KademliaObserver.findVal_hops.add(fop.nrHops);
+				KademliaObserver.findValTimeHist.record(CommonState.getTime() - fop.timestamp);
+			} else if (Log.isDebug()) {
+				Log.debug("node:" + this.nodeId + " did not find the value of " + fop.destNode);
+			}
+		}
+	}
+
+	/**
+	 * choose the replicas of a store among the nodes of a converged closest set: the ones which reported the largest capacity
+	 * (the closest one first when two nodes reported the same capacity)
+	 *
+	 * @param closestSet
+	 *            the closest set of the lookup
+	 * @param n
+	 *            number of replicas
+	 * @return the chosen nodes (fewer than n if fewer nodes answered)
+	 */
+	private static NodeId[] selectReplicas(ClosestSet closestSet, int n) {
+		int[] chosen = new int[n];
+		int count = 0;
+		for (int i = 0; i < closestSet.size(); i++) {
+			if (closestSet.getState(i) != ClosestSet.QUERIED)
+				continue;
+			// insertion in the chosen ones, sorted by capacity (descending)
+			int j = Math.min(count, n - 1);
+			if (count == n && closestSet.getCapacity(chosen[j]) >= closestSet.getCapacity(i))
+				continue;
+			while (j > 0 && closestSet.getCapacity(chosen[j - 1]) < closestSet.getCapacity(i)) {
+				chosen[j] = chosen[j - 1];
+				j--;
+			}
+			chosen[j] = i;
+			if (count < n)
+				count++;
+		}
+		NodeId[] replicas = new NodeId[count];
+		for (int j = 0; j < count; j++)
+			replicas[j] = closestSet.get(chosen[j]);
+		return replicas;
+	}
+
+	/**
+	 * Callback of a find operation aborted because it reached its deadline (FIND_TIMEOUT) before converging.
+	 *
+	 * @param fop
+	 *            the find operation
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	protected void onFindAborted(FindOperation fop, int myPid) {
+		// a store (or a batched find value) proceeds with the nodes which answered
+		if (fop.body instanceof StoreFile || fop.body instanceof StoreFile[])
+			startStore(fop, myPid);
+		else if (fop.body instanceof NodeId[])
+			startFindValues(fop, myPid);
+	}
+
+	/**
+	 * Send the value of a store (or all the values of a batched store, in a single message) to the REPLICATION nodes of the
+	 * closest set with more capacity left, and wait for their acknowledgements until STORE_TIMEOUT.
+	 *
+	 * @param fop
+	 *            the lookup of the key
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void startStore(FindOperation fop, int myPid) {
+		boolean batch = fop.body instanceof StoreFile[];
+		StoreFile[] files = batch ? (StoreFile[]) fop.body : new StoreFile[] { (StoreFile) fop.body };
+		StoreOperation so = new StoreOperation(fop.operationId, files, fop.timestamp);
+		// the closest nodes reported their capacity in their responses: store on the ones with more space left
+		for (NodeId node : selectReplicas(fop.closestSet, KademliaCommonConfig.REPLICATION)) {
+			Message storeMsg = batch ? EventPool.message(Message.MSG_STORE_BATCH, files) : EventPool.message(Message.MSG_STORE, files[0]);
+			storeMsg.src = this.nodeId;
+			storeMsg.dest = node;
+			storeMsg.operationId = so.operationId;
+			sendMessage(storeMsg, node, myPid);
+			so.replicas++;
+		}
+		if (so.replicas == 0) { // nobody answered the lookup
+			finishStore(so);
+			return;
+		}
+
+		storeOps.put(so.operationId, so);
+		so.deadline = EventPool.timeout(null, -1, so.operationId);
+		so.deadline.deadline = CommonState.getTime() + KademliaCommonConfig.STORE_TIMEOUT;
+		startTimer(so.deadline, nodeIdtoNode(this.nodeId), myPid);
+	}
+
+	/**
+	 * End a store operation, because every replica answered or because of its deadline
+	 *
+	 * @param so
+	 *            the store operation
+	 */
+	private void finishStore(StoreOperation so) {
+		storeOps.remove(so.operationId);
+		if (so.deadline != null) {
+			timers.cancel(so.deadline);
+			EventPool.release(so.deadline);
+			so.deadline = null;
+		}
+		for (int i = 0; i < so.files.length; i++) {
+			if (!so.succeeded(i))
+				KademliaObserver.store_failed.add(1);
+		}
+	}
+
+	/**
+	 * Ask all the keys of a batched find value to the nodes of the closest set of the lookup of their prefix, and wait for their
+	 * answers until STORE_TIMEOUT.
+	 *
+	 * @param fop
+	 *            the lookup of the prefix
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void startFindValues(FindOperation fop, int myPid) {
+		FindValuesOperation vo = new FindValuesOperation(fop.operationId, (NodeId[]) fop.body, fop.timestamp, fop.nrHops);
+		for (int i = 0; i < fop.closestSet.size(); i++) {
+			if (fop.closestSet.getState(i) != ClosestSet.QUERIED)
+				continue;
+			Message request = EventPool.message(Message.MSG_FINDVALUE_BATCH, vo.keys);
+			request.src = this.nodeId;
+			request.dest = fop.closestSet.get(i);
+			request.operationId = vo.operationId;
+			sendMessage(request, request.dest, myPid);
+			vo.asked++;
+		}
+		if (vo.asked == 0) { // nobody answered the lookup
+			finishFindValues(vo);
+			return;
+		}
+
+		findValuesOps.put(vo.operationId, vo);
+		vo.deadline = EventPool.timeout(null, -1, vo.operationId);
+		vo.deadline.deadline = CommonState.getTime() + KademliaCommonConfig.STORE_TIMEOUT;
+		startTimer(vo.deadline, nodeIdtoNode(this.nodeId), myPid);
+	}
+
+	/**
+	 * End a batched find value, because every key has been found, every node answered or because of its deadline
+	 *
+	 * @param vo
+	 *            the operation
+	 */
+	private void finishFindValues(FindValuesOperation vo) {
+		findValuesOps.remove(vo.operationId);
+		if (vo.deadline != null) {
+			timers.cancel(vo.deadline);
+			EventPool.release(vo.deadline);
+			vo.deadline = null;
+		}
+		if (vo.remaining > 0 && Log.isDebug())
+			Log.debug("node:" + this.nodeId + " did not find the value of " + vo.remaining + " keys out of " + vo.keys.length);
+	}
+
 	/**
 	 * Response to a route request.<br>
 	 * Find the ALPHA closest node consulting the k-buckets and return them to the sender.
@@ -306,10 +555,10 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	 */
 	private void routeResponse(Message m, int myPid) {
 		// get the ALPHA closest node to destNode
-		BigInteger[] neighbours = this.routingTable.getNeighbours(m.dest, m.src);
+		NodeId[] neighbours = this.routingTable.getNeighbours(m.dest, m.src);
 
-		// create a response message containing the neighbors (with the same id of the request)
-		Message response = new Message(Message.MSG_RESPONSE, neighbours);//将本节点已知的k个最近节点返回给src节点
+		// create a response message containing the neighbors and the capacity left (with the same id of the request)
+		Message response = EventPool.message(Message.MSG_RESPONSE, new RouteResponse(neighbours, (int) this.storeMap.free()));//将本节点已知的k个最近节点返回给src节点
 		response.operationId = m.operationId;
 		response.dest = m.dest;
 		response.src = this.nodeId;
@@ -320,62 +569,149 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	}
 
 	/**
-	 * Start a find node operation.
+	 * Start a find operation.
 	 * Find the ALPHA closest node and send find request to them.
 	 *
 	 * @param m
 	 *            Message received (contains the node to find)
+	 * @param requestType
+	 *            type of the requests sent: MSG_ROUTE (find node) or MSG_FINDVALUE (find value)
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void find(Message m, int requestType, int myPid) {
+		find(m.dest, m.body, m.timestamp, requestType, myPid);
+	}
+
+	/**
+	 * Start a find operation.
+	 * Find the ALPHA closest node and send find request to them.
+	 *
+	 * @param dest
+	 *            the id to find
+	 * @param body
+	 *            what the operation is for (see onFindCompleted)
+	 * @param timestamp
+	 *            start time of the operation
+	 * @param requestType
+	 *            type of the requests sent: MSG_ROUTE (find node) or MSG_FINDVALUE (find value)
 	 * @param myPid
 	 *            the sender Pid
 	 */
-	private void find(Message m, int myPid) {
+	private void find(NodeId dest, Object body, long timestamp, int requestType, int myPid) {
 
 		KademliaObserver.find_op.add(1);
 
 		// create find operation and add to operations array
-		FindOperation fop = new FindOperation(m.dest, m.timestamp);
-		fop.body = m.body;
+		FindOperation fop = new FindOperation(dest, timestamp);
+		fop.body = body;
+		fop.requestType = requestType;
 		findOp.put(fop.operationId, fop);
 
+		// abort the operation if it does not converge in time
+		if (KademliaCommonConfig.FIND_TIMEOUT > 0) {
+			fop.deadline = EventPool.timeout(null, -1, fop.operationId);
+			fop.deadline.deadline = CommonState.getTime() + KademliaCommonConfig.FIND_TIMEOUT;
+			startTimer(fop.deadline, nodeIdtoNode(this.nodeId), myPid);
+		}
+
 
 		// get the ALPHA closest node to srcNode and add to find operation
-		BigInteger[] neighbours = this.routingTable.getNeighbours(m.dest, this.nodeId);
+		NodeId[] neighbours = this.routingTable.getNeighbours(dest, this.nodeId);
 		fop.elaborateResponse(neighbours);
 		fop.available_requests = KademliaCommonConfig.ALPHA;
 
-		// set message operation id，将信息转发
-		m.operationId = fop.operationId;
-		m.type = Message.MSG_ROUTE;
-		m.src = this.nodeId;
+		// send ALPHA requests (if there is nobody to ask the operation ends immediately)
+		sendRequests(fop, myPid);
+	}
 
-		// send ALPHA messages
-		for (int i = 0; i < KademliaCommonConfig.ALPHA; i++) {
-			BigInteger nextNode = fop.getNeighbour(); //get the first neighbor in closest set which has not been already queried
-			if (nextNode != null) {
-				sendMessage(m.copy(), nextNode, myPid);
-				fop.nrHops++;
+	/**
+	 * Store many values at once.<br>
+	 * The keys are sorted and grouped by their first groupPrefix() bits: a single lookup is done for every group, then every
+	 * replica receives all the values of the group in one MSG_STORE_BATCH and acknowledges each of them in its response. A
+	 * group of a single key is stored as by a MSG_STORE_REQUEST.
+	 *
+	 * @param files
+	 *            the (key, value) pairs to store
+	 * @param myPid
+	 *            the protocol Pid
+	 */
+	public void storeAll(StoreFile[] files, int myPid) {
+		this.kademliaid = myPid;
+		KademliaObserver.sendtostore_msg.add(files.length);
+
+		StoreFile[] sorted = files.clone();
+		Arrays.sort(sorted, new Comparator<StoreFile>() {
+			public int compare(StoreFile a, StoreFile b) {
+				return a.getKey().compareTo(b.getKey());
 			}
+		});
+		int bits = groupPrefix();
+		long now = CommonState.getTime();
+		for (int from = 0, to; from < sorted.length; from = to) {
+			for (to = from + 1; to < sorted.length && sorted[from].getKey().prefixLen(sorted[to].getKey()) >= bits; to++)
+				;
+			Object body = to - from == 1 ? sorted[from] : Arrays.copyOfRange(sorted, from, to);
+			find(sorted[from].getKey(), body, now, Message.MSG_ROUTE, myPid);
 		}
+	}
 
+	/**
+	 * Find the values of many keys at once.<br>
+	 * The values stored locally are found immediately. The other keys are sorted and grouped by their first groupPrefix() bits:
+	 * a single lookup is done for every group, then all the keys of the group are asked in one MSG_FINDVALUE_BATCH to the nodes
+	 * of the closest set, which answer with the values they store. A group of a single key is looked up as by a
+	 * MSG_FINDVALUE_REQ.
+	 *
+	 * @param keys
+	 *            the keys
+	 * @param myPid
+	 *            the protocol Pid
+	 */
+	public void findValues(NodeId[] keys, int myPid) {
+		this.kademliaid = myPid;
+		KademliaObserver.findVal_times.add(keys.length);
+
+		NodeId[] missing = new NodeId[keys.length];
+		int n = 0;
+		for (NodeId key : keys) {
+			if (this.storeMap.get(key) != null) {
+				KademliaObserver.findVal_success.add(1);
+				KademliaObserver.findVal_hops.add(0);
+				KademliaObserver.findValTimeHist.record(0);
+			} else {
+				missing[n++] = key;
+			}
+		}
+		Arrays.sort(missing, 0, n);
+		int bits = groupPrefix();
+		long now = CommonState.getTime();
+		for (int from = 0, to; from < n; from = to) {
+			for (to = from + 1; to < n && missing[from].prefixLen(missing[to]) >= bits; to++)
+				;
+			if (to - from == 1)
+				find(missing[from], missing[from], now, Message.MSG_FINDVALUE, myPid);
+			else
+				find(missing[from], Arrays.copyOfRange(missing, from, to), now, Message.MSG_ROUTE, myPid);
+		}
 	}
 
+	/**
+	 * Length of the prefix shared by the keys of a batch looked up together: the network is split in regions of fewer than K
+	 * nodes, so the K closest nodes to the first key of a group are mostly the K closest ones to any other key of the group.
+	 *
+	 * @return number of bits
+	 */
+	private static int groupPrefix() {
+		int regions = (LiveNodes.size() + KademliaCommonConfig.K - 1) / KademliaCommonConfig.K;
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, regions * 2 - 1)) - 1; // log2 rounded up
+		return Math.min(bits, KademliaCommonConfig.BITS);
+	}
 
-	private void store(Message m,int myPid){
-		StoreFile sf = (StoreFile) m.body;
-		boolean storedSucceed = false;
-		if(this.storeCapacity>=sf.getSize()) {
-			this.storeMap.put(sf.getKey(), sf.getValue());
-			System.out.println("Node:" + this.nodeId+"("+this.storeCapacity+"-"+sf.getSize()+")" + " storing kv data:" + sf.toString());
-			this.storeCapacity -= sf.getSize();
-//			StoreMessageGenerator.generateStoreVals.add((String)((StoreFile)m.body).getValue());
 
-			KademliaObserver.real_store_operation.add(1);
-			storedSucceed = true;
-		}else {
-			System.out.println("Node:" + this.nodeId+ ":" +this.storeCapacity+ " can't storing kv data:" + sf.toString());
-		}
-		String respBody = sf.getValue() + "-"+storedSucceed;
-		Message storeRespMsg = new Message(Message.MSG_STORE_RESP,respBody);
+	private void store(Message m, StoreFile sf, int myPid){
+		boolean storedSucceed = storeLocally(sf);
+		Message storeRespMsg = EventPool.message(Message.MSG_STORE_RESP, new StoreAck(sf.getKey(), storedSucceed, (int) this.storeMap.free()));
 		storeRespMsg.src = this.nodeId;
 		storeRespMsg.dest = m.src;
 		storeRespMsg.operationId = m.operationId;
@@ -384,88 +720,243 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 
 	}
 
-	private void getStoreResp(Message m,int myPid){
-		String resp = (String)m.body;
-		String value = resp.split("-")[0];
-		boolean isSucceed =  Boolean.parseBoolean(resp.split("-")[1]);
-//		System.out.println(this.storeTimesMap.keySet().contains(value) );
-		if(this.storeTimesMap.keySet().contains(value) && isSucceed){
-			int times = storeTimesMap.get(value);
-//			System.out.println("times:"+times + "  flag:"+storeSucceedFlag);
-			storeTimesMap.put(value,++times);
-			if(times > 0 && !storeSucceedFlag){
-				storeSucceedFlag = true;
+	/**
+	 * store all the values of a batched store, and acknowledge each of them in a single response
+	 *
+	 * @param m
+	 *            Message
+	 * @param files
+	 *            the values to store
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void storeBatch(Message m, StoreFile[] files, int myPid) {
+		StoreAck[] acks = new StoreAck[files.length];
+		for (int i = 0; i < files.length; i++) {
+			boolean stored = storeLocally(files[i]);
+			acks[i] = new StoreAck(files[i].getKey(), stored, (int) this.storeMap.free());
+		}
+		Message resp = EventPool.message(Message.MSG_STORE_BATCH_RESP, acks);
+		resp.src = this.nodeId;
+		resp.dest = m.src;
+		resp.operationId = m.operationId;
+		KademliaObserver.sendstore_resp.add(1);
+		sendMessage(resp, m.src, myPid);
+	}
+
+	/**
+	 * store a value if there is room for it
+	 *
+	 * @param sf
+	 *            the value
+	 * @return true if it has been stored
+	 */
+	private boolean storeLocally(StoreFile sf) {
+		// the storage engine makes room for the value if its policy allows it
+		boolean storedSucceed = this.storeMap.put(sf.getKey(), sf.getValue(), sf.getSize());
+		if(storedSucceed) {
+			if (Log.isDebug())
+				Log.debug("Node:" + this.nodeId+"("+this.storeMap.free()+" left)" + " storing kv data:" + sf.toString());
+//			StoreMessageGenerator.generateStoreVals.add((String)((StoreFile)m.body).getValue());
+
+			KademliaObserver.real_store_operation.add(1);
+		}else {
+			this.storeRefused++;
+			if (Log.isDebug())
+				Log.debug("Node:" + this.nodeId+ ":" +this.storeMap.free()+ " can't storing kv data:" + sf.toString());
+		}
+		return storedSucceed;
+	}
+
+	/**
+	 * the response of a replica to a store, with an acknowledgement for every value of the store (in the same order)
+	 *
+	 * @param m
+	 *            Message
+	 * @param acks
+	 *            the acknowledgements
+	 */
+	private void getStoreResp(Message m, StoreAck[] acks){
+		StoreOperation so = this.storeOps.get(m.operationId);
+		if (so == null) // late acknowledgement, the operation already ended
+			return;
+
+		so.answers++;
+		for (int i = 0; i < acks.length && i < so.files.length; i++) {
+			if (acks[i].stored && so.acknowledge(i)) {
 				KademliaObserver.stored_msg.add(1);
+				KademliaObserver.storeTimeHist.record(CommonState.getTime() - so.timestamp);
 			}
 		}
+		if (so.completed())
+			finishStore(so);
+	}
+
+	/**
+	 * Start a find value operation, unless the value is stored locally.
+	 *
+	 * @param m
+	 *            Message received (dest is the key)
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void findValue(Message m, int myPid) {
+		KademliaObserver.findVal_times.add(1);
+		if (this.storeMap.get(m.dest) != null) {
+			KademliaObserver.findVal_success.add(1);
+			KademliaObserver.findVal_hops.add(0);
+			KademliaObserver.findValTimeHist.record(0);
+			return;
+		}
+		find(m, Message.MSG_FINDVALUE, myPid);
 	}
 
-	private void returnSpace(Message m,int myPid){
-		StoreFile sf = new StoreFile(((StoreFile) m.body).getKey(),((StoreFile) m.body).getValue());
-		sf.setSize(((StoreFile) m.body).getSize());
-		sf.setStoreNodeRemainSize(this.storeCapacity);
-		Message spaceRespMsg = new Message(Message.MSG_STORE_SPACE_RESP,sf);
-		spaceRespMsg.src = this.nodeId;
-		spaceRespMsg.dest = m.src;
-		spaceRespMsg.operationId = m.operationId;
-		sendMessage(spaceRespMsg,m.src,myPid);
-		System.out.println("node:"+this.nodeId+"return space:"+sf.getStoreNodeRemainSize());
-	}
-
-	private void sortBySpaceAndSendStore(Message m,int myPid){
-		//FindOperation fop = this.findOp.get(m.operationId);
-		System.out.println("node:"+this.nodeId+"receive space:"+((StoreFile)m.body).getStoreNodeRemainSize()+" from "+m.src);
-		this.nodeSpace.put(m.src,((StoreFile)m.body).getStoreNodeRemainSize());
-
-		if(this.nodeSpace.size()>=KademliaCommonConfig.K){
-			List<Map.Entry<BigInteger, Integer>> list = new ArrayList<>(nodeSpace.entrySet());
-			// 通过比较器来实现排序
-			Collections.sort(list, (o1, o2) -> {
-				// 降序排序
-				return o2.getValue().compareTo(o1.getValue());
-			});
-//			for (Map.Entry<BigInteger, Integer> mapping : list) {
-//				System.out.println(mapping.getKey() + ":" + mapping.getValue());
-//			}
-			int i = 3;
-			for (Map.Entry<BigInteger, Integer> nodeMap : list) {
-				Message storeMsg = new Message(Message.MSG_STORE, m.body);
-				storeMsg.src = this.nodeId;
-				storeMsg.dest = nodeMap.getKey();
-				storeMsg.operationId = m.operationId;
-				sendMessage(storeMsg, nodeMap.getKey(), myPid);
-				if (--i == 0) break;
+	/**
+	 * Response to a find value request: the value if it is stored here, otherwise the K closest nodes to the key (as a route
+	 * request)
+	 *
+	 * @param m
+	 *            Message (dest is the key)
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void getValue(Message m,int myPid){
+		Object val = this.storeMap.get(m.dest);
+		if(val == null){
+			routeResponse(m, myPid);
+			return;
+		}
+		StoreFile sf = new StoreFile(m.dest, val);
+		sf.setSize(this.storeMap.sizeOf(m.dest));
+		Message returnValMsg = EventPool.message(Message.MSG_RETURNVALUE,sf);
+		returnValMsg.src = this.nodeId;
+		returnValMsg.dest = m.src;
+		returnValMsg.operationId = m.operationId;
+		returnValMsg.ackId = m.id;
+		if (Log.isDebug())
+			Log.debug("node:"+nodeId+" return value "+val+" to node:"+m.src);
+		sendMessage(returnValMsg,m.src,myPid);
+	}
+
+	/**
+	 * Response to a batched find value: the value of every key (null if it is not stored here), in the same order
+	 *
+	 * @param m
+	 *            Message
+	 * @param keys
+	 *            the keys
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void getValues(Message m, NodeId[] keys, int myPid) {
+		StoreFile[] values = new StoreFile[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			Object val = this.storeMap.get(keys[i]);
+			if (val != null) {
+				values[i] = new StoreFile(keys[i], val);
+				values[i].setSize(this.storeMap.sizeOf(keys[i]));
 			}
-			this.nodeSpace.clear();
 		}
+		Message resp = EventPool.message(Message.MSG_RETURNVALUE_BATCH, values);
+		resp.src = this.nodeId;
+		resp.dest = m.src;
+		resp.operationId = m.operationId;
+		sendMessage(resp, m.src, myPid);
 	}
 
+	/**
+	 * A node asked by a batched find value answered: the keys found for the first time succeed
+	 *
+	 * @param m
+	 *            Message
+	 * @param values
+	 *            the value of every key of the operation (null if the node does not store it)
+	 */
+	private void receiveValues(Message m, StoreFile[] values) {
+		FindValuesOperation vo = this.findValuesOps.get(m.operationId);
+		if (vo == null) // late answer, the operation already ended
+			return;
 
-	private void getValue(Message m,int myPid){
-		String value = (String)m.body;
-		for (Object val:this.storeMap.values()
-			 ) {
-			if(val.equals(value)){
-				Message returnValMsg = new Message(Message.MSG_RETURNVALUE,value);
-				returnValMsg.src = this.nodeId;
-				returnValMsg.dest = m.src;
-				returnValMsg.operationId = m.operationId;
-				returnValMsg.body = val;
-				System.out.println("node:"+nodeId+" return value "+val+" to node:"+m.src);
-				sendMessage(returnValMsg,m.src,myPid);
-				break;
+		vo.answers++;
+		for (int i = 0; i < values.length && i < vo.keys.length; i++) {
+			if (values[i] != null && vo.found(i)) {
+				KademliaObserver.findVal_success.add(1);
+				KademliaObserver.findVal_hops.add(vo.lookupHops + 1);
+				KademliaObserver.findValTimeHist.record(CommonState.getTime() - vo.timestamp);
 			}
 		}
+		if (vo.completed())
+			finishFindValues(vo);
 	}
 
-	private void receiveVal(Message m,int myPid){
-		String receVal = (String)m.body;
-		if(!receivedVals.contains(receVal)){
-			receivedVals.add(receVal);
-			KademliaObserver.findVal_success.add(1);
-			System.err.println("node "+this.nodeId + "'s findVals:"+this.findVals);
-			System.err.println("node "+this.nodeId + "'s receiveVals:"+this.receivedVals);
+	/**
+	 * total size of the values stored by this node
+	 *
+	 * @return long
+	 */
+	long storedBytes() {
+		return this.storeMap.bytes();
+	}
+
+	/**
+	 * the store of this node (for the statistics)
+	 *
+	 * @return StorageEngine
+	 */
+	StorageEngine getStorage() {
+		return this.storeMap;
+	}
+
+	/**
+	 * A node queried by a find value operation returned the value: the operation ends (early termination). If CACHE_ON_PATH is
+	 * set, a copy of the value is sent to the closest node which answered without it.
+	 *
+	 * @param m
+	 *            Message
+	 * @param sf
+	 *            the value found
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void receiveVal(Message m, StoreFile sf, int myPid){
+		Timeout t = sentMsg.remove(m.ackId);
+		if (t != null)
+			requestAnswered(t);
+		this.routingTable.addNeighbour(m.src);
+
+		FindOperation fop = t == null ? null : this.findOp.get(m.operationId);
+		if (fop == null) // late answer, the operation already ended
+			return;
+
+		fop.value = sf.getValue();
+
+		if (KademliaCommonConfig.CACHE_ON_PATH) {
+			for (int i = 0; i < fop.closestSet.size(); i++) {
+				if (fop.closestSet.getState(i) == ClosestSet.QUERIED) {
+					Message cacheMsg = EventPool.message(Message.MSG_CACHE, sf);
+					cacheMsg.src = this.nodeId;
+					cacheMsg.dest = fop.closestSet.get(i);
+					cacheMsg.operationId = m.operationId;
+					sendMessage(cacheMsg, cacheMsg.dest, myPid);
+					break;
+				}
+			}
 		}
+
+		finishFind(fop, false, myPid);
+	}
+
+	/**
+	 * store a copy of a value found by a find value, if there is room for it without evicting anything (no response)
+	 *
+	 * @param sf
+	 *            the value found
+	 */
+	private void cache(StoreFile sf) {
+		if (this.storeMap.containsKey(sf.getKey()) || this.storeMap.free() < sf.getSize())
+			return;
+		this.storeMap.put(sf.getKey(), sf.getValue(), sf.getSize());
+		KademliaObserver.cached_values.add(1);
 	}
 
 
@@ -479,27 +970,169 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	 * @param myPid
 	 *            the sender Pid
 	 */
-	public void sendMessage(Message m, BigInteger destId, int myPid) {
+	public void sendMessage(Message m, NodeId destId, int myPid) {
 		// add destination to routing table
 		this.routingTable.addNeighbour(destId);
 
 		Node src = nodeIdtoNode(this.nodeId);
 		Node dest = nodeIdtoNode(destId);
 
-		transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
+		int bytes = m.wireSize();
+		transport = (Transport) src.getProtocol(tid);
 		transport.send(src, dest, m, kademliaid);
-
-		if (m.getType() == Message.MSG_ROUTE) { // is a request
-			Timeout t = new Timeout(destId, m.id, m.operationId);
-			long latency = transport.getLatency(src, dest);
+		this.msgOut++;
+		this.bytesOut += bytes;
+		KademliaObserver.msg_sent[m.getType()]++;
+		KademliaObserver.bytes_sent[m.getType()] += bytes;
+
+		if (m.getType() == Message.MSG_ROUTE || m.getType() == Message.MSG_FINDVALUE) { // is a request
+			Timeout t = EventPool.timeout(destId, m.id, m.operationId);
+			// estimated round trip time of the destination, or of all the contacts if it has never been measured
+			long estimate = this.routingTable.getRtt(destId);
+			if (estimate == RttEstimator.NONE)
+				estimate = this.rtt;
+			t.deadline = CommonState.getTime() + RttEstimator.timeout(estimate);
+			if (KademliaCommonConfig.SOFT_TIMEOUT) {
+				t.hardDeadline = t.deadline;
+				t.deadline = CommonState.getTime() + RttEstimator.softTimeout(estimate);
+			}
 			// add to sent msg
-			this.sentMsg.put(m.id, m.timestamp);
-			EDSimulator.add(4 * latency, t, src, myPid); // set delay = 2*RTT(往返时间)
+			this.sentMsg.put(m.id, t);
+			FindOperation fop = this.findOp.get(m.operationId);
+			if (fop != null)
+				fop.pending.add(t);
+			startTimer(t, src, myPid);
+		}
+	}
+
+	/**
+	 * put a timeout in the timer wheel, scheduling the Tick event which will wake the node up if needed
+	 *
+	 * @param t
+	 *            the timeout (with its deadline set)
+	 * @param myNode
+	 *            this node
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void startTimer(Timeout t, Node myNode, int myPid) {
+		EventPool.check(t, "scheduled");
+		long wakeUp = timers.schedule(t);
+		if (wakeUp >= 0)
+			EDSimulator.add(wakeUp - CommonState.getTime(), timers.newTick(wakeUp), myNode, myPid);
+	}
+
+	/**
+	 * handle in a batch all the timeouts expired in the timer wheel, then schedule the next Tick
+	 *
+	 * @param myNode
+	 *            this node
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void expireTimers(Node myNode, int myPid) {
+		int n = timers.expire(CommonState.getTime());
+		for (int i = 0; i < n; i++) {
+			Timeout t = timers.getExpired(i); // null if a previous one cancelled it
+			if (t != null) {
+				EventPool.check(t, "expired");
+				requestTimedOut(t, myNode, myPid);
+			}
+		}
+
+		long wakeUp = timers.nextWakeUp(CommonState.getTime());
+		if (wakeUp >= 0)
+			EDSimulator.add(wakeUp - CommonState.getTime(), timers.newTick(wakeUp), myNode, myPid);
+	}
+
+	/**
+	 * the response to a request did not arrive in time
+	 *
+	 * @param t
+	 *            the expired timeout
+	 * @param myPid
+	 *            the sender Pid
+	 */
+	private void requestTimedOut(Timeout t, Node myNode, int myPid) {
+		FindOperation fop = this.findOp.get(t.opID);
+
+		// t is the deadline of one operation only (those started after a lookup reuse its id), and is not read once released
+		if (t.isOperationDeadline()) { // the whole find operation did not converge in time
+			if (fop != null && fop.deadline == t) {
+				fop.deadline = null;
+				finishFind(fop, true, myPid);
+				EventPool.release(t);
+				return;
+			}
+			StoreOperation so = this.storeOps.get(t.opID); // or some replica did not acknowledge a store in time
+			if (so != null && so.deadline == t) {
+				so.deadline = null;
+				finishStore(so);
+				EventPool.release(t);
+				return;
+			}
+			FindValuesOperation vo = this.findValuesOps.get(t.opID); // or some node did not answer a batched find value in time
+			if (vo != null && vo.deadline == t) {
+				vo.deadline = null;
+				finishFindValues(vo);
+				EventPool.release(t);
+			}
+			return;
+		}
+
+		if (t.hardDeadline >= 0) { // soft deadline: the request is slow, query another node meanwhile
+			t.deadline = t.hardDeadline;
+			t.hardDeadline = -1;
+			startTimer(t, myNode, myPid);
+			if (fop != null) {
+				t.released = true;
+				fop.releaseRequest();
+				sendRequests(fop, myPid);
+			}
+			return;
+		}
+
+		// remove form sentMsg
+		if (sentMsg.remove(t.msgID) == null)
+			return;
+		// remove node from my routing table
+		this.routingTable.removeNeighbour(t.node);
+		// mark as failed in the closestSet of find operation and try another node
+		if (fop != null) {
+			fop.pending.remove(t);
+			if (t.released)
+				fop.reclaimRequest();
+			fop.markFailed(t.node);
+			sendRequests(fop, myPid);
+		}
+		EventPool.release(t);
+	}
+
+	/**
+	 * the response to a request arrived: stop its timer and update the round trip time estimations
+	 *
+	 * @param t
+	 *            the timeout of the request
+	 */
+	private void requestAnswered(Timeout t) {
+		timers.cancel(t);
+
+		long sample = CommonState.getTime() - t.timestamp;
+		this.routingTable.updateRtt(t.node, sample);
+		this.rtt = RttEstimator.update(this.rtt, sample);
+
+		FindOperation fop = this.findOp.get(t.opID);
+		if (fop != null) {
+			fop.pending.remove(t);
+			if (t.released)
+				fop.reclaimRequest();
 		}
+		EventPool.release(t);
 	}
 
 	/**
-	 * manage the peersim receiving of the events
+	 * manage the peersim receiving of the events (measuring the time spent if profiling is enabled), then give the message back to
+	 * the EventPool
 	 *
 	 * @param myNode
 	 *            Node
@@ -509,32 +1142,66 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	 *            Object
 	 */
 	public void processEvent(Node myNode, int myPid, Object event) {
+		if (KademliaCommonConfig.PROFILE) {
+			long start = System.nanoTime();
+			handleEvent(myNode, myPid, event);
+			EventProfiler.record(((SimpleEvent) event).getType(), System.nanoTime() - start);
+		} else {
+			handleEvent(myNode, myPid, event);
+		}
+
+		// a message is delivered once: nobody keeps it after its handler
+		if (event instanceof Message)
+			EventPool.release((Message) event);
+	}
+
+	/**
+	 * dispatch an event to its handler
+	 *
+	 * @param myNode
+	 *            Node
+	 * @param myPid
+	 *            int
+	 * @param event
+	 *            Object
+	 */
+	private void handleEvent(Node myNode, int myPid, Object event) {
 
 		// Parse message content Activate the correct event manager fot the particular event
 		this.kademliaid = myPid;
 
-		Message m;
+		if (!(event instanceof Message)) {
+			if (event instanceof TimerWheel.Tick) { // some request may have timed out
+				if (timers.isValid((TimerWheel.Tick) event))
+					expireTimers(myNode, myPid);
+			}
+			return;
+		}
 
-//		if((((KademliaProtocol) this).getNodeId().equals(new BigInteger("1436294760649089404056870643165375864014011356023")))){
-//			KademliaProtocol kp = ((KademliaProtocol) (myNode.getProtocol(myPid)));
-//			System.out.println(Message.messageTypetoString(((SimpleEvent) event).getType()));
-//		}
+		Message m = (Message) event;
+		EventPool.check(m, "delivered");
+		this.msgIn++;
+		KademliaObserver.msg_received[m.getType()]++;
 
-		switch (((SimpleEvent) event).getType()) {
+		// every body has its own type, read through the typed accessors of Message: nothing is parsed or cast here
+		switch (m.getType()) {
 
 			case Message.MSG_RESPONSE:
-				m = (Message) event;
-				sentMsg.remove(m.ackId);
-				route(m, myPid);
+				Timeout t = sentMsg.remove(m.ackId);
+				if (t != null)
+					requestAnswered(t);
+				if (t != null && findOp.containsKey(m.operationId)) {
+					route(m, m.getRouteResponse(), myPid);
+				} else if (m.src != null) { // late response: the request timed out, or the operation ended while it was slow
+					routingTable.addNeighbour(m.src);
+				}
 				break;
 
 			case Message.MSG_FINDNODE:
-				m = (Message) event;
-				find(m, myPid);
+				find(m, Message.MSG_ROUTE, myPid);
 				break;
 
 			case Message.MSG_ROUTE:
-				m = (Message) event;
 				routeResponse(m, myPid);
 				break;
 
@@ -543,74 +1210,55 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 				break;
 
 			case Message.MSG_STORE:
-				m = (Message)event;
-				store(m,myPid);
+				store(m, m.getStoreFile(), myPid);
 				break;
 
 			case Message.MSG_STORE_REQUEST:
-				m = (Message)event;
-				System.out.println("This node:" + this.getNodeId()+"get kv to store:"+m.body);
-				System.out.println("the generateStore:"+StoreMessageGenerator.generateStoreVals.size());
-				find(m,myPid);
-				this.storeTimesMap.put((String)((StoreFile) m.body).getValue(),0);
+				if (Log.isDebug()) {
+					Log.debug("This node:" + this.getNodeId()+"get kv to store:"+m.body);
+					Log.debug("the generateStore:"+StoreMessageGenerator.generateStoreVals.size());
+				}
+				find(m, Message.MSG_ROUTE, myPid);
 
 				KademliaObserver.sendtostore_msg.add(1);
 				break;
 
 			case Message.MSG_STORE_RESP:
-				m = (Message)event;
-				getStoreResp(m,myPid);
+				getStoreResp(m, new StoreAck[] { m.getStoreAck() });
 				break;
 
-			case Message.MSG_STORE_SPACE_REQ:
-				m = (Message)event;
-				returnSpace(m,myPid);
+			case Message.MSG_STORE_BATCH:
+				storeBatch(m, m.getStoreFiles(), myPid);
 				break;
 
-			case Message.MSG_STORE_SPACE_RESP:
-				m = (Message)event;
-				sortBySpaceAndSendStore(m,myPid);
+			case Message.MSG_STORE_BATCH_RESP:
+				getStoreResp(m, m.getStoreAcks());
 				break;
 
-//			case Message.MSG_FINDVALUE_REQ:
-//				m = (Message)event;
-//				System.out.println("This node:" + this.getNodeId()+"finding value:"+m.body);
-//				if(!findVals.contains((String)m.body)) {
-//					findVals.add((String) m.body);
-//					find(m, myPid);
-//					System.err.println("node:"+this.nodeId+"'s findVals:"+this.findVals);
-//					KademliaObserver.findVal_times.add(1);
-//				}else {
-//					System.out.println("This node already find this value:" + m.body);
-//				}
-//				break;
-
-//			case Message.MSG_FINDVALUE:
-//				m = (Message)event;
-//				getValue(m,myPid);
-//				break;
-
-//			case Message.MSG_RETURNVALUE:
-//				m = (Message)event;
-//				receiveVal(m,myPid);
-//				break;
-
-			case Timeout.TIMEOUT: // timeout
-				Timeout t = (Timeout) event;
-				if (sentMsg.containsKey(t.msgID)) { // the response msg isn't arrived
-					// remove form sentMsg
-					sentMsg.remove(t.msgID);
-					// remove node from my routing table
-					this.routingTable.removeNeighbour(t.node);
-					// remove from closestSet of find operation
-					this.findOp.get(t.opID).closestSet.remove(t.node);
-					// try another node
-					Message m1 = new Message();
-					m1.operationId = t.opID;
-					m1.src = nodeId;
-					m1.dest = this.findOp.get(t.opID).destNode;
-					this.route(m1, myPid);
-				}
+			case Message.MSG_FINDVALUE_BATCH:
+				getValues(m, m.getKeys(), myPid);
+				break;
+
+			case Message.MSG_RETURNVALUE_BATCH:
+				receiveValues(m, m.getStoreFiles());
+				break;
+
+			case Message.MSG_FINDVALUE_REQ:
+				if (Log.isDebug())
+					Log.debug("This node:" + this.getNodeId()+" finding value of key:"+m.dest);
+				findValue(m, myPid);
+				break;
+
+			case Message.MSG_FINDVALUE:
+				getValue(m,myPid);
+				break;
+
+			case Message.MSG_RETURNVALUE:
+				receiveVal(m, m.getStoreFile(), myPid);
+				break;
+
+			case Message.MSG_CACHE:
+				cache(m.getStoreFile());
 				break;
 
 		}
@@ -621,14 +1269,14 @@ public class KademliaProtocol implements Cloneable, EDProtocol {
 	 * set the current NodeId
 	 * 
 	 * @param tmp
-	 *            BigInteger
+	 *            NodeId
 	 */
-	public void setNodeId(BigInteger tmp) {
+	public void setNodeId(NodeId tmp) {
 		this.nodeId = tmp;
 		this.routingTable.nodeId = tmp;
 	}
 
-	public BigInteger getNodeId() {
+	public NodeId getNodeId() {
 		return nodeId;
 	}
 }
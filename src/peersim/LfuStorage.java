@@ -0,0 +1,22 @@
+package peersim;
+
+/**
+ * Storage engine which evicts the least popular values, i.e. the ones found by the fewest lookups (the one stored first among
+ * equally popular values). The victim is searched among all the values, which are a few per node.
+ */
+public class LfuStorage extends BoundedStorage {
+
+	public LfuStorage(long capacity, long ttl) {
+		super(capacity, ttl);
+	}
+
+	protected Entry victim() {
+		Entry victim = oldest();
+		for (Entry e = victim; e != null; e = newer(e)) {
+			if (e.accesses < victim.accesses)
+				victim = e;
+		}
+		return victim;
+	}
+
+}
@@ -0,0 +1,101 @@
+package peersim;
+
+import peersim.core.CommonState;
+import peersim.core.Network;
+import peersim.core.Node;
+
+/**
+ * Network-wide registry of the nodes up, kept as a dense array (plus the position of every node in it), so that the number of
+ * nodes up is known in constant time and a random node up is picked with a single draw, whatever the fraction of failed nodes in
+ * the Network is.<br>
+ * The registry is filled by CustomDistribution and updated by Turbulence when a node joins or fails: a control changing the
+ * state of the nodes in another way has to call rebuild().
+ */
+public class LiveNodes {
+
+	private static Node[] nodes = new Node[16];
+
+	private static int size = 0;
+
+	// position in nodes, by node ID (Node.getID())
+	private static LongHashMap<Integer> positions = new LongHashMap<Integer>();
+
+	/**
+	 * register again all the nodes up of the Network
+	 */
+	public static void rebuild() {
+		nodes = new Node[Math.max(16, Network.size())];
+		positions = new LongHashMap<Integer>(Network.size());
+		size = 0;
+		for (int i = 0; i < Network.size(); i++) {
+			if (Network.get(i).isUp())
+				add(Network.get(i));
+		}
+	}
+
+	/**
+	 * register a node which joined the network
+	 *
+	 * @param n
+	 *            Node
+	 */
+	public static void add(Node n) {
+		if (positions.containsKey(n.getID()))
+			return;
+		if (size == nodes.length)
+			nodes = java.util.Arrays.copyOf(nodes, size * 2);
+		nodes[size] = n;
+		positions.put(n.getID(), size);
+		size++;
+	}
+
+	/**
+	 * unregister a node which failed (the last node of the array takes its position)
+	 *
+	 * @param n
+	 *            Node
+	 */
+	public static void remove(Node n) {
+		Integer pos = positions.remove(n.getID());
+		if (pos == null)
+			return;
+		size--;
+		if (pos < size) {
+			nodes[pos] = nodes[size];
+			positions.put(nodes[pos].getID(), pos);
+		}
+		nodes[size] = null;
+	}
+
+	/**
+	 * number of nodes up
+	 *
+	 * @return int
+	 */
+	public static int size() {
+		return size;
+	}
+
+	/**
+	 * the i-th node up (the order is arbitrary and changes when nodes fail)
+	 *
+	 * @param i
+	 *            int, between 0 and size() - 1
+	 * @return Node
+	 */
+	public static Node get(int i) {
+		return nodes[i];
+	}
+
+	/**
+	 * pick a node up uniformly at random (using the simulator random generator)
+	 *
+	 * @return Node, or null if no node is up
+	 */
+	public static Node random() {
+		if (size == 0)
+			return null;
+		return nodes[CommonState.r.nextInt(size)];
+	}
+
+}
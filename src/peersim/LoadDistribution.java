@@ -0,0 +1,78 @@
+package peersim;
+
+/**
+ * Summary of how a load (messages, stored bytes...) is spread over the nodes: max, average, Gini coefficient (0 when every node
+ * has the same load, close to 1 when a single node has all of it) and the most loaded nodes.
+ */
+public class LoadDistribution {
+
+	/**
+	 * largest load of a node
+	 */
+	public final long max;
+
+	/**
+	 * average load of a node
+	 */
+	public final double average;
+
+	/**
+	 * Gini coefficient of the loads
+	 */
+	public final double gini;
+
+	/**
+	 * positions (in the array of loads) of the most loaded nodes, most loaded first
+	 */
+	public final int[] top;
+
+	/**
+	 * summarize the loads of the nodes
+	 *
+	 * @param loads
+	 *            load of every node (not modified)
+	 * @param n
+	 *            number of nodes (the first n elements of loads are used)
+	 * @param topN
+	 *            how many of the most loaded nodes to keep
+	 */
+	public LoadDistribution(long[] loads, int n, int topN) {
+		long[] sorted = java.util.Arrays.copyOf(loads, n);
+		java.util.Arrays.sort(sorted);
+
+		long sum = 0;
+		double weighted = 0;
+		for (int i = 0; i < n; i++) {
+			sum += sorted[i];
+			weighted += (double) (i + 1) * sorted[i];
+		}
+		max = n > 0 ? sorted[n - 1] : 0;
+		average = n > 0 ? (double) sum / n : 0;
+		gini = sum > 0 ? 2 * weighted / ((double) n * sum) - (double) (n + 1) / n : 0;
+
+		// selection of the topN largest loads (topN is small)
+		topN = Math.min(topN, n);
+		top = new int[topN];
+		for (int k = 0; k < topN; k++) {
+			int best = -1;
+			for (int i = 0; i < n; i++) {
+				if (best >= 0 && loads[i] <= loads[best])
+					continue;
+				boolean taken = false;
+				for (int j = 0; j < k && !taken; j++)
+					taken = top[j] == i;
+				if (!taken)
+					best = i;
+			}
+			top[k] = best;
+		}
+	}
+
+	/**
+	 * @return String with max, average and Gini coefficient
+	 */
+	public String toString() {
+		return String.format("max=%d avg=%.2f gini=%.3f", max, average, gini);
+	}
+
+}
@@ -0,0 +1,182 @@
+package peersim;
+
+import java.util.Arrays;
+
+/**
+ * The (key, value) pairs stored by a node, indexed by key.<br>
+ * It is an open addressing hash table with linear probing (as LongHashMap) whose keys are kept as the three primitive words of
+ * the NodeId, so a lookup by key costs a hash and a few word comparisons, and the table allocates no entry object of its own. What
+ * is known about a value besides the value itself (its size, expiration, ...) is up to the storage engine which owns the table
+ * (see BoundedStorage, which stores its entries here).<br>
+ * Null values are not allowed.
+ */
+public class LocalStore {
+
+	private long[] hi;
+	private long[] mid;
+	private int[] lo;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * creates an empty store
+	 */
+	public LocalStore() {
+		this(8);
+	}
+
+	/**
+	 * creates an empty store with room for the given number of entries
+	 *
+	 * @param capacity
+	 *            int
+	 */
+	public LocalStore(int capacity) {
+		alloc(Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1);
+	}
+
+	private void alloc(int len) {
+		hi = new long[len];
+		mid = new long[len];
+		lo = new int[len];
+		values = new Object[len];
+		mask = len - 1;
+	}
+
+	private int slot(long h, long m, int l) {
+		long x = (h ^ (m * 0x9E3779B97F4A7C15L) ^ l) * 0x9E3779B97F4A7C15L;
+		return (int) (x ^ (x >>> 32)) & mask;
+	}
+
+	// position of the key, or of the empty slot where it would be inserted
+	private int find(NodeId key) {
+		int i = slot(key.hi, key.mid, key.lo);
+		while (values[i] != null && (hi[i] != key.hi || mid[i] != key.mid || lo[i] != key.lo))
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/**
+	 * return the value stored with the key, or null
+	 *
+	 * @param key
+	 *            NodeId
+	 * @return Object
+	 */
+	public Object get(NodeId key) {
+		return values[find(key)];
+	}
+
+	/**
+	 * check if a value is stored with the key
+	 *
+	 * @param key
+	 *            NodeId
+	 * @return boolean
+	 */
+	public boolean containsKey(NodeId key) {
+		return values[find(key)] != null;
+	}
+
+	/**
+	 * store a value with the key, replacing the previous one
+	 *
+	 * @param key
+	 *            NodeId
+	 * @param value
+	 *            Object (not null)
+	 * @return the previous value stored with the key, or null
+	 */
+	public Object put(NodeId key, Object value) {
+		int i = find(key);
+		Object old = values[i];
+		if (old == null) {
+			hi[i] = key.hi;
+			mid[i] = key.mid;
+			lo[i] = key.lo;
+			size++;
+		}
+		values[i] = value;
+		if (old == null && size * 2 > values.length)
+			resize(values.length * 2);
+		return old;
+	}
+
+	/**
+	 * remove the value stored with the key
+	 *
+	 * @param key
+	 *            NodeId
+	 * @return the value removed, or null
+	 */
+	public Object remove(NodeId key) {
+		int i = find(key);
+		Object old = values[i];
+		if (old == null)
+			return null;
+		size--;
+
+		// shift back the following entries of the cluster which would not be reachable anymore
+		int hole = i;
+		for (i = (i + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = slot(hi[i], mid[i], lo[i]);
+			// move the entry if its home slot is not in the (cyclic) interval (hole, i]
+			if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+				hi[hole] = hi[i];
+				mid[hole] = mid[i];
+				lo[hole] = lo[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		values[hole] = null;
+		return old;
+	}
+
+	/**
+	 * number of stored values
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * remove all the values
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private void resize(int len) {
+		long[] oldHi = hi;
+		long[] oldMid = mid;
+		int[] oldLo = lo;
+		Object[] oldValues = values;
+		alloc(len);
+		for (int j = 0; j < oldValues.length; j++) {
+			if (oldValues[j] != null) {
+				int i = slot(oldHi[j], oldMid[j], oldLo[j]);
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				hi[i] = oldHi[j];
+				mid[i] = oldMid[j];
+				lo[i] = oldLo[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	public String toString() {
+		String s = "{";
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				s += (s.length() > 1 ? ", " : "") + new NodeId(hi[i], mid[i], lo[i]) + "=" + values[i];
+		}
+		return s + "}";
+	}
+
+}
@@ -0,0 +1,228 @@
+package peersim;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Logging facade of the protocol.<br>
+ * The level is checked with a static method reading a static field, so the call sites guard the message construction with it
+ * (<code>if (Log.isDebug()) Log.debug("..." + x);</code>) and a disabled level costs a field read and nothing else.<br>
+ * Enabled messages are appended to an in-memory batch; full batches are handed to a daemon thread which writes them, so the
+ * simulation does not wait for the console or the disk. At most QUEUE batches wait for the writer: when they are all taken the
+ * simulation blocks until the writer catches up, so a slow destination does not fill the heap. The last batch is written when
+ * the JVM exits.<br>
+ * Errors and warnings are also written at once to the standard error, unbuffered, so they are seen as soon as they happen.
+ */
+public final class Log {
+
+	/**
+	 * no message is written
+	 */
+	public static final int OFF = 0;
+
+	/**
+	 * errors of the protocol
+	 */
+	public static final int ERROR = 1;
+
+	/**
+	 * unexpected but harmless situations
+	 */
+	public static final int WARN = 2;
+
+	/**
+	 * relevant events
+	 */
+	public static final int INFO = 3;
+
+	/**
+	 * per message tracing
+	 */
+	public static final int DEBUG = 4;
+
+	private static final String[] NAMES = { "OFF", "ERROR", "WARN", "INFO", "DEBUG" };
+
+	// size (in chars) of a batch handed to the writer thread
+	private static final int BATCH = 16 * 1024;
+
+	// maximum number of batches waiting for the writer thread
+	private static final int QUEUE = 64;
+
+	private static int level = WARN;
+
+	private static OutputStream out = System.out;
+
+	// true if out is a file opened by configure (closed when replaced)
+	private static boolean ownOut = false;
+
+	private static StringBuilder batch = new StringBuilder(BATCH + 256);
+
+	// batches waiting to be written, an empty one stops the writer
+	private static final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE);
+
+	private static Thread writer = null;
+
+	private static boolean hooked = false;
+
+	private Log() {
+	}
+
+	/**
+	 * set the level and the destination of the messages
+	 *
+	 * @param levelName
+	 *            one of OFF, ERROR, WARN, INFO, DEBUG (case insensitive)
+	 * @param file
+	 *            file the messages are appended to, null for the standard output
+	 * @throws IllegalArgumentException
+	 *             if the level is unknown
+	 * @throws IOException
+	 *             if the file can not be opened
+	 */
+	public static synchronized void configure(String levelName, String file) throws IOException {
+		int l = -1;
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(levelName))
+				l = i;
+		}
+		if (l < 0)
+			throw new IllegalArgumentException("unknown log level " + levelName);
+
+		flush();
+		level = l;
+		if (file != null) {
+			OutputStream previous = out;
+			out = new FileOutputStream(file, true);
+			if (ownOut)
+				previous.close();
+			ownOut = true;
+		}
+	}
+
+	public static boolean isError() {
+		return level >= ERROR;
+	}
+
+	public static boolean isWarn() {
+		return level >= WARN;
+	}
+
+	public static boolean isInfo() {
+		return level >= INFO;
+	}
+
+	public static boolean isDebug() {
+		return level >= DEBUG;
+	}
+
+	public static void error(String msg) {
+		if (level >= ERROR)
+			report("ERROR", msg);
+	}
+
+	public static void warn(String msg) {
+		if (level >= WARN)
+			report("WARN", msg);
+	}
+
+	public static void info(String msg) {
+		if (level >= INFO)
+			append("INFO", msg);
+	}
+
+	public static void debug(String msg) {
+		if (level >= DEBUG)
+			append("DEBUG", msg);
+	}
+
+	// write a line to the standard error at once, and to the log file if there is one
+	private static synchronized void report(String levelName, String msg) {
+		System.err.println(peersim.core.CommonState.getTime() + " " + levelName + " " + msg);
+		if (ownOut)
+			append(levelName, msg);
+	}
+
+	// add a line to the current batch, handing it to the writer when full
+	private static synchronized void append(String levelName, String msg) {
+		batch.append(peersim.core.CommonState.getTime()).append(' ').append(levelName).append(' ').append(msg).append('\n');
+		if (batch.length() >= BATCH)
+			handOff();
+	}
+
+	private static void handOff() {
+		if (batch.length() == 0)
+			return;
+		if (writer == null)
+			startWriter();
+		put(batch.toString());
+		batch.setLength(0);
+	}
+
+	// queue a batch for the writer, waiting for it if the queue is full
+	private static void put(String s) {
+		try {
+			queue.put(s);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void startWriter() {
+		writer = new Thread("kademlia-log") {
+			public void run() {
+				Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+				boolean failed = false;
+				try {
+					for (String s = queue.take(); !s.isEmpty(); s = queue.take()) {
+						if (failed)
+							continue; // nothing can be logged anymore, but the queue is still emptied
+						try {
+							w.write(s);
+							if (queue.isEmpty())
+								w.flush();
+						} catch (IOException e) {
+							failed = true;
+						}
+					}
+					w.flush();
+				} catch (InterruptedException | IOException e) {
+					// nothing can be logged anymore
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		// write the last batch before the JVM exits
+		if (!hooked) {
+			hooked = true;
+			Runtime.getRuntime().addShutdownHook(new Thread("kademlia-log-flush") {
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * write all the pending messages and wait for the writer to finish
+	 */
+	public static synchronized void flush() {
+		handOff();
+		if (writer == null)
+			return;
+		put("");
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+	}
+
+}
@@ -0,0 +1,177 @@
+package peersim;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long keys (e.g. message ids) to objects, implemented as an open addressing hash table with linear
+ * probing. Keys are never boxed and removing an entry does not leave tombstones (the following entries of the cluster are
+ * shifted back), so the table stays compact even with a continuous flow of insertions and removals.<br>
+ * Null values are not allowed.
+ *
+ * @param <V>
+ *            type of the values
+ */
+public class LongHashMap<V> {
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * creates an empty map
+	 */
+	public LongHashMap() {
+		this(16);
+	}
+
+	/**
+	 * creates an empty map with room for the given number of entries
+	 *
+	 * @param capacity
+	 *            int
+	 */
+	public LongHashMap(int capacity) {
+		int len = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+		keys = new long[len];
+		values = new Object[len];
+		mask = len - 1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * return the value associated to the key, or null
+	 *
+	 * @param key
+	 *            long
+	 * @return V
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return (V) values[i];
+		}
+		return null;
+	}
+
+	/**
+	 * check if the key is in the map
+	 *
+	 * @param key
+	 *            long
+	 * @return boolean
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * associate a value to the key
+	 *
+	 * @param key
+	 *            long
+	 * @param value
+	 *            V (not null)
+	 * @return the previous value associated to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * remove the key from the map
+	 *
+	 * @param key
+	 *            long
+	 * @return the value associated to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				break;
+		}
+		if (values[i] == null)
+			return null;
+
+		V old = (V) values[i];
+		size--;
+
+		// shift back the following entries of the cluster which would not be reachable anymore
+		int hole = i;
+		for (i = (i + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = slot(keys[i]);
+			// move the entry if its home slot is not in the (cyclic) interval (hole, i]
+			if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		values[hole] = null;
+		return old;
+	}
+
+	/**
+	 * number of entries
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * remove all the entries
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private void resize(int len) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[len];
+		values = new Object[len];
+		mask = len - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] != null) {
+				int i = slot(oldKeys[j]);
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	public String toString() {
+		String s = "{";
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null)
+				s += (s.length() > 1 ? ", " : "") + keys[i] + "=" + values[i];
+		}
+		return s + "}";
+	}
+
+}
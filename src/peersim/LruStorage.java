@@ -0,0 +1,51 @@
+package peersim;
+
+/**
+ * Storage engine which evicts the least recently used values (a value is used when it is stored or found by a lookup). The
+ * values are kept in a list ordered by last use, so choosing the victim costs constant time.
+ */
+public class LruStorage extends BoundedStorage {
+
+	// least and most recently used values
+	private Entry head = null;
+	private Entry tail = null;
+
+	public LruStorage(long capacity, long ttl) {
+		super(capacity, ttl);
+	}
+
+	protected Entry victim() {
+		return head;
+	}
+
+	protected void inserted(Entry e) {
+		e.prev = tail;
+		e.next = null;
+		if (tail != null)
+			tail.next = e;
+		else
+			head = e;
+		tail = e;
+	}
+
+	protected void accessed(Entry e) {
+		if (e == tail)
+			return;
+		removed(e);
+		inserted(e);
+	}
+
+	protected void removed(Entry e) {
+		if (e.prev != null)
+			e.prev.next = e.next;
+		else
+			head = e.next;
+		if (e.next != null)
+			e.next.prev = e.prev;
+		else
+			tail = e.prev;
+		e.prev = null;
+		e.next = null;
+	}
+
+}
@@ -1,8 +1,6 @@
 package peersim;
 
-import sun.misc.resources.Messages_fr;
-
-import java.math.BigInteger;
+import peersim.core.CommonState;
 
 /**
  * 
@@ -28,9 +26,6 @@ import java.math.BigInteger;
 // ______________________________________________________________________________________
 public class Message extends SimpleEvent {
 
-
-	public static final int MSG_STORE_SPACE_REQ = 10;
-	public static final int MSG_STORE_SPACE_RESP = 11;
 	/**
 	 * internal generator for unique message IDs
 	 */
@@ -77,10 +72,38 @@ public class Message extends SimpleEvent {
 
 	public static final int MSG_RETURNVALUE = 9;
 
+	/**
+	 * Message Type: CACHE (stores a copy of a value found by a FINDVALUE on a node of the path, no response)
+	 */
+	public static final int MSG_CACHE = 10;
+
+	/**
+	 * Message Types: batched STORE (several values whose keys share a prefix) and its response (an acknowledgement per value)
+	 */
+	public static final int MSG_STORE_BATCH = 11;
+	public static final int MSG_STORE_BATCH_RESP = 12;
+
+	/**
+	 * Message Types: batched FINDVALUE (several keys) and its response (the value of every key, null if not stored)
+	 */
+	public static final int MSG_FINDVALUE_BATCH = 13;
+	public static final int MSG_RETURNVALUE_BATCH = 14;
+
+	/**
+	 * number of message types (every type is lower than this)
+	 */
+	public static final int MSG_TYPES = 15;
+
+	/**
+	 * size in bytes of the fixed fields of a serialized message (type, id, ack id, operation id)
+	 */
+	public static final int HEADER_SIZE = 1 + 8 + 8 + 8;
+
 
 	// ______________________________________________________________________________________________
 	/**
-	 * This Object contains the body of the message, no matter what it contains
+	 * This Object contains the body of the message, no matter what it contains. The protocol messages read it through the
+	 * accessor of their type (getRouteResponse(), getStoreFile(), ...), which checks that the message is of that type.
 	 */
 	public Object body = null;
 
@@ -102,18 +125,23 @@ public class Message extends SimpleEvent {
 	/**
 	 * Recipient address of the message
 	 */
-	public BigInteger dest;
+	public NodeId dest;
 
 	/**
 	 * Source address of the message: has to be filled at application level
 	 */
-	public BigInteger src;
+	public NodeId src;
 
 	/**
 	 * Available to count the number of hops the message did.
 	 */
 	protected int nrHops = 0;
 
+	/**
+	 * size of the serialized message, computed once (see wireSize())
+	 */
+	private int wireSize = -1;
+
 	// ______________________________________________________________________________________________
 	/**
 	 * Creates an empty message by using default values (message type = MSG_EMPTY and <code>new String("")</code> value for the
@@ -124,13 +152,13 @@ public class Message extends SimpleEvent {
 	}
 
 	/**
-	 * Create a message with specific type and empty body
+	 * Create a message with specific type and no body
 	 * 
 	 * @param messageType
 	 *            int type of the message
 	 */
 	public Message(int messageType) {
-		this(messageType, "");
+		this(messageType, null);
 	}
 
 	// ______________________________________________________________________________________________
@@ -157,7 +185,7 @@ public class Message extends SimpleEvent {
 	 * @return Message
 	 */
 	/*public static final Message makeFindValue(Object body) {
-		return new Message(MSG_FINDVALUE, body);
+		return EventPool.message(MSG_FINDVALUE, body);
 	}*/
 
 	// ______________________________________________________________________________________________
@@ -169,7 +197,7 @@ public class Message extends SimpleEvent {
 	 * @return Message
 	 */
 	public static final Message makeFindNode(Object body) {
-		return new Message(MSG_FINDNODE, body);
+		return EventPool.message(MSG_FINDNODE, body);
 	}
 
 	/**
@@ -178,7 +206,7 @@ public class Message extends SimpleEvent {
 	 * @return
 	 */
 	public static final Message makeStoreReq(Object body){
-		return new Message(MSG_STORE_REQUEST,body);
+		return EventPool.message(MSG_STORE_REQUEST, body);
 	}
 
 	/**
@@ -187,7 +215,7 @@ public class Message extends SimpleEvent {
 	 * @return
 	 */
 	public static final Message makeFindValue(Object  body){
-		return new Message(MSG_FINDVALUE_REQ,body);
+		return EventPool.message(MSG_FINDVALUE_REQ, body);
 	}
 
 	// ______________________________________________________________________________________________
@@ -201,37 +229,140 @@ public class Message extends SimpleEvent {
 	}*/
 
 	// ______________________________________________________________________________________________
-	public String toString() {
-		String s = "[ID=" + id + "][SRC="+ src + "]" +"][DEST=" + dest + "]";
-		return s + "[Type=" + messageTypetoString() + "] BODY=(...)";
+	/**
+	 * Reinitialize a message taken from the EventPool, as if it had just been created
+	 * 
+	 * @param messageType
+	 *            int type of the message
+	 * @param body
+	 *            Object body to assign (shallow copy)
+	 */
+	void reset(int messageType, Object body) {
+		this.type = messageType;
+		this.timestamp = CommonState.getTime();
+		this.recycled = false;
+		this.id = (ID_GENERATOR++);
+		this.body = body;
+		this.ackId = 0;
+		this.operationId = 0;
+		this.dest = null;
+		this.src = null;
+		this.nrHops = 0;
+		this.wireSize = -1;
 	}
 
 	// ______________________________________________________________________________________________
-	public Message copy() {
-		Message dolly = new Message();
-		dolly.type = this.type;
-		dolly.src = this.src;
-		dolly.dest = this.dest;
-		dolly.operationId = this.operationId;
-		dolly.body = this.body; // deep cloning?
+	/**
+	 * Size of the message once serialized: a header (type, id, ack id, operation id, source and destination ids) and the body,
+	 * where every id takes BITS/8 bytes and a value its StoreFile size.<br>
+	 * It is computed the first time it is asked (when the message is sent), so the body must not change afterwards.
+	 * 
+	 * @return the size in bytes
+	 */
+	public int wireSize() {
+		if (wireSize < 0)
+			wireSize = computeWireSize();
+		return wireSize;
+	}
 
-		return dolly;
+	private int computeWireSize() {
+		int id = (KademliaCommonConfig.BITS + 7) / 8;
+		int size = HEADER_SIZE + 2 * id;
+		if (body instanceof RouteResponse)
+			size += 2 + ((RouteResponse) body).neighbours.length * id + 4; // count, ids, capacity
+		else if (body instanceof StoreFile)
+			size += id + 4 + ((StoreFile) body).getSize(); // key, length, value
+		else if (body instanceof StoreAck)
+			size += id + 1 + 4; // key, outcome, capacity
+		else if (body instanceof NodeId)
+			size += id;
+		else if (body instanceof NodeId[])
+			size += 2 + ((NodeId[]) body).length * id; // count, keys
+		else if (body instanceof StoreAck[])
+			size += 2 + ((StoreAck[]) body).length * (id + 1 + 4); // count, acknowledgements
+		else if (body instanceof StoreFile[]) {
+			size += 2; // count
+			for (StoreFile sf : (StoreFile[]) body)
+				size += sf == null ? 1 : 1 + id + 4 + sf.getSize(); // presence, key, length, value
+		}
+		return size;
+	}
+
+	// ______________________________________________________________________________________________
+	/**
+	 * body of a MSG_RESPONSE
+	 * 
+	 * @return RouteResponse
+	 */
+	public RouteResponse getRouteResponse() {
+		expect(type == MSG_RESPONSE, "RouteResponse");
+		return (RouteResponse) body;
+	}
+
+	/**
+	 * body of a MSG_STORE, MSG_RETURNVALUE or MSG_CACHE: the value
+	 * 
+	 * @return StoreFile
+	 */
+	public StoreFile getStoreFile() {
+		expect(type == MSG_STORE || type == MSG_RETURNVALUE || type == MSG_CACHE, "StoreFile");
+		return (StoreFile) body;
+	}
+
+	/**
+	 * body of a MSG_STORE_BATCH or MSG_RETURNVALUE_BATCH: the values (null for a key whose value is not stored)
+	 * 
+	 * @return StoreFile[]
+	 */
+	public StoreFile[] getStoreFiles() {
+		expect(type == MSG_STORE_BATCH || type == MSG_RETURNVALUE_BATCH, "StoreFile[]");
+		return (StoreFile[]) body;
+	}
+
+	/**
+	 * body of a MSG_STORE_RESP
+	 * 
+	 * @return StoreAck
+	 */
+	public StoreAck getStoreAck() {
+		expect(type == MSG_STORE_RESP, "StoreAck");
+		return (StoreAck) body;
+	}
+
+	/**
+	 * body of a MSG_STORE_BATCH_RESP: an acknowledgement per value
+	 * 
+	 * @return StoreAck[]
+	 */
+	public StoreAck[] getStoreAcks() {
+		expect(type == MSG_STORE_BATCH_RESP, "StoreAck[]");
+		return (StoreAck[]) body;
+	}
+
+	/**
+	 * body of a MSG_FINDVALUE_BATCH: the keys looked for
+	 * 
+	 * @return NodeId[]
+	 */
+	public NodeId[] getKeys() {
+		expect(type == MSG_FINDVALUE_BATCH, "NodeId[]");
+		return (NodeId[]) body;
+	}
+
+	private void expect(boolean typeMatches, String bodyType) {
+		if (!typeMatches)
+			throw new IllegalStateException(messageTypetoString() + " has no " + bodyType + " body");
+	}
+
+	// ______________________________________________________________________________________________
+	public String toString() {
+		String s = "[ID=" + id + "][SRC="+ src + "]" +"][DEST=" + dest + "]";
+		return s + "[Type=" + messageTypetoString() + "] BODY=(...)";
 	}
 
 	// ______________________________________________________________________________________________
 	public String messageTypetoString() {
-		switch (type) {
-			case MSG_EMPTY:
-				return "MSG_EMPTY";
-			case MSG_STORE:
-				return "MSG_STORE";
-			case MSG_FINDNODE:
-				return "MSG_FINDNODE";
-			case MSG_ROUTE:
-				return "MSG_FINDVALUE";
-			default:
-				return "UNKNOW:" + type;
-		}
+		return messageTypetoString(type);
 	}
 
 	public static  String messageTypetoString(int type) {
@@ -243,9 +374,29 @@ public class Message extends SimpleEvent {
 			case MSG_FINDNODE:
 				return "MSG_FINDNODE";
 			case MSG_ROUTE:
-				return "MSG_FINDVALUE";
+				return "MSG_ROUTE";
 			case  MSG_RESPONSE:
 				return  "MSG_ROUTE_RESPONSE";
+			case MSG_STORE_REQUEST:
+				return "MSG_STORE_REQUEST";
+			case MSG_STORE_RESP:
+				return "MSG_STORE_RESP";
+			case MSG_FINDVALUE_REQ:
+				return "MSG_FINDVALUE_REQ";
+			case MSG_FINDVALUE:
+				return "MSG_FINDVALUE";
+			case MSG_RETURNVALUE:
+				return "MSG_RETURNVALUE";
+			case MSG_CACHE:
+				return "MSG_CACHE";
+			case MSG_STORE_BATCH:
+				return "MSG_STORE_BATCH";
+			case MSG_STORE_BATCH_RESP:
+				return "MSG_STORE_BATCH_RESP";
+			case MSG_FINDVALUE_BATCH:
+				return "MSG_FINDVALUE_BATCH";
+			case MSG_RETURNVALUE_BATCH:
+				return "MSG_RETURNVALUE_BATCH";
 			default:
 				return "UNKNOW:" + type;
 		}
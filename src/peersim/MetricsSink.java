@@ -0,0 +1,159 @@
+package peersim;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams one record per observer step to a file, as CSV (with a header line) or as JSON lines.<br>
+ * A record is a map from field name to value (a Number or a String); only the selected fields are written, always in the same
+ * order. Numbers are written with the dot as decimal separator whatever the locale. Records are buffered and the buffer is
+ * flushed every <code>flushEvery</code> records and when the sink is closed.
+ */
+public class MetricsSink {
+
+	/**
+	 * comma separated values, first line is the header
+	 */
+	public static final String CSV = "csv";
+
+	/**
+	 * one JSON object per line
+	 */
+	public static final String JSONL = "jsonl";
+
+	private final Writer out;
+
+	private final boolean json;
+
+	private final int flushEvery;
+
+	// fields written, null until the first record if all the fields have to be written
+	private String[] fields;
+
+	private int unflushed = 0;
+
+	// the CSV header has not been written yet
+	private boolean header = true;
+
+	/**
+	 * opens (truncating it) the output file
+	 *
+	 * @param path
+	 *            String
+	 * @param format
+	 *            CSV or JSONL
+	 * @param fields
+	 *            names of the fields to write, null to write all the fields of the first record
+	 * @param flushEvery
+	 *            number of records between two flushes
+	 * @throws IOException
+	 *             if the file can not be opened
+	 */
+	public MetricsSink(String path, String format, String[] fields, int flushEvery) throws IOException {
+		if (!CSV.equalsIgnoreCase(format) && !JSONL.equalsIgnoreCase(format))
+			throw new IllegalArgumentException("unknown format " + format + ", use " + CSV + " or " + JSONL);
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), 64 * 1024);
+		this.json = JSONL.equalsIgnoreCase(format);
+		this.fields = fields;
+		this.flushEvery = Math.max(1, flushEvery);
+	}
+
+	/**
+	 * write a record
+	 *
+	 * @param record
+	 *            field name -&gt; value (missing fields are written as empty/null)
+	 * @throws IOException
+	 */
+	public void write(Map<String, Object> record) throws IOException {
+		if (fields == null) {
+			List<String> all = new ArrayList<String>(record.keySet());
+			fields = all.toArray(new String[all.size()]);
+		}
+		if (!json && header) {
+			header = false;
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0)
+					out.write(',');
+				out.write(fields[i]);
+			}
+			out.write('\n');
+		}
+
+		if (json)
+			out.write('{');
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				out.write(',');
+			Object v = record.get(fields[i]);
+			if (v instanceof Double && (((Double) v).isNaN() || ((Double) v).isInfinite()))
+				v = null; // e.g. the average of no values
+			if (json) {
+				out.write('"');
+				out.write(fields[i]);
+				out.write("\":");
+				out.write(v == null ? "null" : v instanceof Number ? v.toString() : '"' + escapeJson(v.toString()) + '"');
+			} else if (v != null) {
+				out.write(v instanceof Number ? v.toString() : escapeCsv(v.toString()));
+			}
+		}
+		out.write(json ? "}\n" : "\n");
+
+		if (++unflushed >= flushEvery) {
+			out.flush();
+			unflushed = 0;
+		}
+	}
+
+	/**
+	 * write the buffered records
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		out.flush();
+		unflushed = 0;
+	}
+
+	/**
+	 * write the buffered records and close the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private static String escapeJson(String s) {
+		StringBuilder b = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				b.append('\\').append(c);
+			else if (c < 0x20)
+				b.append(String.format("\\u%04x", (int) c));
+			else
+				b.append(c);
+		}
+		return b.toString();
+	}
+
+	private static String escapeCsv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+			return s;
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+}
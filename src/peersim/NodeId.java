@@ -0,0 +1,159 @@
+package peersim;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Immutable identifier of a kademlia node or key.<br>
+ * The value is kept in three primitive words (bits 159..96 in <code>hi</code>, bits 95..32 in <code>mid</code>, bits 31..0 in
+ * <code>lo</code>), so every id up to 160 bits fits without allocating a BigInteger. Ids shorter than 160 bits (see
+ * KademliaCommonConfig.BITS) are simply stored with the unused high bits set to zero.<br>
+ * XOR distance comparison, common prefix length and hashing work directly on the words and never allocate.
+ */
+public final class NodeId implements Comparable<NodeId> {
+
+	/**
+	 * max length of an id that can be represented (in bits)
+	 */
+	public static final int MAX_BITS = 160;
+
+	private static final BigInteger MASK_64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+	// bits 159..96
+	final long hi;
+
+	// bits 95..32
+	final long mid;
+
+	// bits 31..0
+	final int lo;
+
+	NodeId(long hi, long mid, int lo) {
+		this.hi = hi;
+		this.mid = mid;
+		this.lo = lo;
+	}
+
+	// ______________________________________________________________________________________________
+	/**
+	 * Converts a non negative BigInteger of at most 160 bits into a NodeId
+	 *
+	 * @param b
+	 *            BigInteger
+	 * @return NodeId
+	 */
+	public static NodeId valueOf(BigInteger b) {
+		if (b.signum() < 0 || b.bitLength() > MAX_BITS)
+			throw new IllegalArgumentException("Id out of range: " + b);
+		return new NodeId(b.shiftRight(96).longValue(), b.shiftRight(32).longValue(), b.intValue());
+	}
+
+	/**
+	 * Parse an hexadecimal string (e.g. a SHA-1 digest) and keep only the lowest BITS bits, so that the key lies in the id space
+	 *
+	 * @param hex
+	 *            String
+	 * @return NodeId
+	 */
+	public static NodeId fromHex(String hex) {
+		return valueOf(new BigInteger(hex, 16)).mask(KademliaCommonConfig.BITS);
+	}
+
+	/**
+	 * Generates a uniformly distributed id of the given length
+	 *
+	 * @param bits
+	 *            number of significant bits (at most 160)
+	 * @param r
+	 *            Random
+	 * @return NodeId
+	 */
+	public static NodeId random(int bits, Random r) {
+		return new NodeId(r.nextLong(), r.nextLong(), r.nextInt()).mask(bits);
+	}
+
+	// keep only the lowest "bits" bits
+	private NodeId mask(int bits) {
+		if (bits >= MAX_BITS)
+			return this;
+		long h = bits > 96 ? hi & (-1L >>> (MAX_BITS - bits)) : 0;
+		long m = bits > 32 ? (bits >= 96 ? mid : mid & (-1L >>> (96 - bits))) : 0;
+		int l = bits >= 32 ? lo : lo & (-1 >>> (32 - bits));
+		return new NodeId(h, m, l);
+	}
+
+	// ______________________________________________________________________________________________
+	/**
+	 * return the XOR distance between this id and another one
+	 *
+	 * @param o
+	 *            NodeId
+	 * @return NodeId
+	 */
+	public NodeId xor(NodeId o) {
+		return new NodeId(hi ^ o.hi, mid ^ o.mid, lo ^ o.lo);
+	}
+
+	/**
+	 * Compare the XOR distances of a and b from this id, without materializing them
+	 *
+	 * @param a
+	 *            NodeId
+	 * @param b
+	 *            NodeId
+	 * @return a negative number if a is closer than b, 0 if they are at the same distance, a positive number otherwise
+	 */
+	public int compareDistance(NodeId a, NodeId b) {
+		return Util.compareDistance(a, b, this);
+	}
+
+	/**
+	 * Returns the length of the common prefix with another id, i.e. how many bits (counting from the leftmost of the BITS
+	 * significant ones) the two ids have in common
+	 *
+	 * @param o
+	 *            NodeId
+	 * @return int between 0 and BITS
+	 */
+	public int prefixLen(NodeId o) {
+		return Util.prefixLen(this, o);
+	}
+
+	// ______________________________________________________________________________________________
+	/**
+	 * unsigned numerical ordering of the ids
+	 */
+	public int compareTo(NodeId o) {
+		return Util.compare(this, o);
+	}
+
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof NodeId))
+			return false;
+		NodeId o = (NodeId) obj;
+		return hi == o.hi && mid == o.mid && lo == o.lo;
+	}
+
+	public int hashCode() {
+		// ids are uniformly random, folding the words is enough
+		long h = hi ^ (mid * 0x9E3779B97F4A7C15L) ^ lo;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Returns the id as a BigInteger (allocates, use only for output or conversions)
+	 *
+	 * @return BigInteger
+	 */
+	public BigInteger toBigInteger() {
+		return BigInteger.valueOf(hi).and(MASK_64).shiftLeft(96).or(BigInteger.valueOf(mid).and(MASK_64).shiftLeft(32))
+				.or(BigInteger.valueOf(lo & 0xFFFFFFFFL));
+	}
+
+	public String toString() {
+		return toBigInteger().toString();
+	}
+
+}
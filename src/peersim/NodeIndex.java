@@ -0,0 +1,73 @@
+package peersim;
+
+import java.util.HashMap;
+
+import peersim.core.Network;
+import peersim.core.Node;
+
+/**
+ * Network-wide index from node ids to the nodes of the network, used to resolve the sender and the destination of every
+ * message in constant time, whatever the order of the nodes in the Network is.<br>
+ * The index is filled by CustomDistribution, rebuilt by StateBuilder and updated by Turbulence when a node joins. Failed nodes
+ * are kept (like they are kept in the Network) so that the simulator keeps dropping the messages sent to them.
+ */
+public class NodeIndex {
+
+	private static HashMap<NodeId, Node> nodes = new HashMap<NodeId, Node>();
+
+	/**
+	 * remove every entry (a new experiment is starting)
+	 */
+	public static void clear() {
+		nodes.clear();
+	}
+
+	/**
+	 * add (or replace) the node owning the given id
+	 * 
+	 * @param id
+	 *            NodeId
+	 * @param node
+	 *            Node
+	 */
+	public static void put(NodeId id, Node node) {
+		nodes.put(id, node);
+	}
+
+	/**
+	 * return the node owning the given id
+	 * 
+	 * @param id
+	 *            NodeId
+	 * @return Node, or null if no node has this id
+	 */
+	public static Node get(NodeId id) {
+		if (id == null)
+			return null;
+		return nodes.get(id);
+	}
+
+	/**
+	 * number of indexed nodes
+	 * 
+	 * @return int
+	 */
+	public static int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * index again all the nodes of the Network using the ids stored in the given kademlia protocol
+	 * 
+	 * @param kademliaid
+	 *            the kademlia protocol id
+	 */
+	public static void rebuild(int kademliaid) {
+		nodes = new HashMap<NodeId, Node>(Network.size() * 2);
+		for (int i = 0; i < Network.size(); i++) {
+			Node n = Network.get(i);
+			nodes.put(((KademliaProtocol) n.getProtocol(kademliaid)).nodeId, n);
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package peersim;
+
+/**
+ * Body of a MSG_RESPONSE: the closest neighbours to the searched id known by the responder, together with the storage capacity
+ * it has left, so that a store can choose its replicas as soon as the lookup converges.
+ */
+public class RouteResponse {
+
+	/**
+	 * the closest neighbours known by the responder
+	 */
+	public final NodeId[] neighbours;
+
+	/**
+	 * remaining storage capacity of the responder
+	 */
+	public final int capacity;
+
+	public RouteResponse(NodeId[] neighbours, int capacity) {
+		this.neighbours = neighbours;
+		this.capacity = capacity;
+	}
+
+}
@@ -1,11 +1,11 @@
 package peersim;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
- * Gives an implementation for the rounting table component of a kademlia node
+ * Gives an implementation for the rounting table component of a kademlia node.<br>
+ * The k-buckets are kept in a plain array indexed by the common prefix length, and every k-bucket is allocated only when the
+ * first neighbour falls into it (in a network of N nodes only about log2(N) of them are ever used).
  * 
  * @author Daniele Furlan, Maurizio Bonani
  * @version 1.0
@@ -13,91 +13,147 @@ import java.util.TreeMap;
 public class RoutingTable implements Cloneable {
 
 	// node ID of the node
-	public BigInteger nodeId = null;
+	public NodeId nodeId = null;
 
-	// k-buckets
-	public TreeMap<Integer, KBucket> k_buckets = null;
+	// k-buckets (null until the first neighbour is added)
+	public KBucket[] k_buckets = null;
 
 	// ______________________________________________________________________________________________
 	/**
 	 * instanciates a new empty routing table with the specified size
 	 */
 	public RoutingTable() {
-		k_buckets = new TreeMap<Integer, KBucket>();
-		// initialize k-bukets
-		for (int i = 0; i <= KademliaCommonConfig.BITS; i++) {
-			k_buckets.put(i, new KBucket());
-		}
+		k_buckets = new KBucket[KademliaCommonConfig.BITS + 1];
 	}
 
 	// add a neighbour to the correct k-bucket
-	public void addNeighbour(BigInteger node) {
+	public void addNeighbour(NodeId node) {
 		// get the length of the longest common prefix (correspond to the correct k-bucket)
 		//找到某节点（参数）与本节点之间的最长前缀长度，也就是k-bucket的编号
 		int prefix_len = Util.prefixLen(nodeId, node);
 
 		// add the node to the k-bucket 将节点加入对应的k-bucket
-		k_buckets.get(prefix_len).addNeighbour(node);
+		KBucket bucket = k_buckets[prefix_len];
+		if (bucket == null) {
+			bucket = new KBucket();
+			k_buckets[prefix_len] = bucket;
+		}
+		bucket.addNeighbour(node);
 	}
 
 	// remove a neighbour from the correct k-bucket
-	public void removeNeighbour(BigInteger node) {
+	public void removeNeighbour(NodeId node) {
 		// get the lenght of the longest common prefix (correspond to the correct k-bucket)
 		int prefix_len = Util.prefixLen(nodeId, node);
 
-		// add the node to the k-bucket
-		k_buckets.get(prefix_len).removeNeighbour(node);
+		// remove the node from the k-bucket
+		KBucket bucket = k_buckets[prefix_len];
+		if (bucket != null)
+			bucket.removeNeighbour(node);
 	}
 
-	// return the closest neighbour to a key from the correct k-bucket
-	public BigInteger[] getNeighbours(final BigInteger key, final BigInteger src) {
-		// resulting neighbours
-		BigInteger[] result = new BigInteger[KademliaCommonConfig.K];
+	// return the round trip time estimation of a neighbour (RttEstimator.NONE if unknown)
+	public long getRtt(NodeId node) {
+		KBucket bucket = k_buckets[Util.prefixLen(nodeId, node)];
+		int i = bucket == null ? -1 : bucket.indexOf(node);
+		return i < 0 ? RttEstimator.NONE : bucket.getRtt(i);
+	}
 
-		// neighbour candidates
-		ArrayList<BigInteger> neighbour_candidates = new ArrayList<BigInteger>();
+	// add a round trip time sample to the estimation of a neighbour, if it is in the routing table
+	public void updateRtt(NodeId node, long sample) {
+		KBucket bucket = k_buckets[Util.prefixLen(nodeId, node)];
+		int i = bucket == null ? -1 : bucket.indexOf(node);
+		if (i >= 0)
+			bucket.updateRtt(i, sample);
+	}
+
+	// return the k-bucket of the given prefix length, or null if it is empty
+	public KBucket getBucket(int prefix_len) {
+		return k_buckets[prefix_len];
+	}
+
+	// return the K closest neighbours to a key (closest first), excluding src
+	public NodeId[] getNeighbours(final NodeId key, final NodeId src) {
+		// bounded max-heap of the candidates, the farthest one is at the root
+		NodeId[] result = new NodeId[KademliaCommonConfig.K];
+		int size = 0;
 
 		// get the length of the longest common prefix
 		int prefix_len = Util.prefixLen(nodeId, key);//计算目标节点与当前节点的共同前缀长确定kbuckets中位于哪个桶中
 
-		// return the k-bucket if is full
-		if (k_buckets.get(prefix_len).neighbours.size() >= KademliaCommonConfig.K) { //如果kbuckets中该桶的大小是满的
-			return k_buckets.get(prefix_len).neighbours.keySet().toArray(result);//返回整个kbucket给src
-		}
+		// the nodes of the k-bucket of the key share prefix_len+1 bits with it: they are closer than any other node
+		size = offer(k_buckets[prefix_len], result, size, key, src);
 
-		// else get k closest node from all k-buckets
-		prefix_len = 0;
-		while (prefix_len < KademliaCommonConfig.ALPHA) {  //将一些nodeID加入候选list
-			neighbour_candidates.addAll(k_buckets.get(prefix_len).neighbours.keySet());
-			// remove source id
-			neighbour_candidates.remove(src);
-			prefix_len++;
+		// then come the deeper k-buckets, all of them at the same order of distance from the key
+		if (size < result.length) {
+			for (int i = prefix_len + 1; i < k_buckets.length; i++)
+				size = offer(k_buckets[i], result, size, key, src);
 		}
 
-		// create a map (distance, node)
-		TreeMap<BigInteger, BigInteger> distance_map = new TreeMap<BigInteger, BigInteger>();
+		// every shallower k-bucket is farther than all the previous ones: stop as soon as K nodes have been found
+		for (int i = prefix_len - 1; i >= 0 && size < result.length; i--)
+			size = offer(k_buckets[i], result, size, key, src);
 
-		for (BigInteger node : neighbour_candidates) {//根据距离给候选list节点排序
-			distance_map.put(Util.distance(node, key), node);
+		// sort the heap in place, closest first
+		for (int end = size - 1; end > 0; end--) {
+			NodeId tmp = result[0];
+			result[0] = result[end];
+			result[end] = tmp;
+			siftDown(result, end, key);
 		}
 
-		int i = 0;
-		for (BigInteger iii : distance_map.keySet()) {//选出最近的k个节点返回
-			if (i < KademliaCommonConfig.K) {
-				result[i] = distance_map.get(iii);
-				i++;
+		if (size < result.length)
+			return Arrays.copyOf(result, size);
+		return result;
+	}
+
+	// add the neighbours of a k-bucket to the heap of the K closest candidates, returns the new size of the heap
+	private static int offer(KBucket bucket, NodeId[] heap, int size, NodeId key, NodeId src) {
+		if (bucket == null)
+			return size;
+
+		for (int j = 0; j < bucket.size(); j++) {
+			NodeId node = bucket.get(j);
+			if (node.equals(src))
+				continue;
+
+			if (size < heap.length) { // heap not full: sift up the new node
+				int i = size++;
+				while (i > 0) {
+					int parent = (i - 1) >>> 1;
+					if (Util.compareDistance(heap[parent], node, key) >= 0)
+						break;
+					heap[i] = heap[parent];
+					i = parent;
+				}
+				heap[i] = node;
+			} else if (Util.compareDistance(node, heap[0], key) < 0) { // closer than the farthest candidate: replace it
+				heap[0] = node;
+				siftDown(heap, size, key);
 			}
 		}
+		return size;
+	}
 
-		return result;
+	// restore the max-heap property from the root, considering the first size entries
+	private static void siftDown(NodeId[] heap, int size, NodeId key) {
+		NodeId node = heap[0];
+		int i = 0;
+		int child;
+		while ((child = 2 * i + 1) < size) {
+			if (child + 1 < size && Util.compareDistance(heap[child + 1], heap[child], key) > 0)
+				child++;
+			if (Util.compareDistance(heap[child], node, key) <= 0)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = node;
 	}
 
 	// ______________________________________________________________________________________________
 	public Object clone() {
 		RoutingTable dolly = new RoutingTable();
-		for (int i = 0; i < KademliaCommonConfig.BITS; i++) {
-			k_buckets.put(i, new KBucket());// (KBucket) k_buckets.get(i).clone());
-		}
 		return dolly;
 	}
 
@@ -0,0 +1,88 @@
+package peersim;
+
+/**
+ * Round trip time estimation (Jacobson/Karels, as in TCP - RFC 6298) used to compute the timeout of the requests.<br>
+ * An estimation is packed in a single long (smoothed RTT in the high 32 bits, RTT variance in the low 32 bits), so it can be
+ * stored in a primitive array next to every k-bucket entry without allocating anything. The value 0 means "no sample yet".
+ */
+public class RttEstimator {
+
+	/**
+	 * the estimation before any sample
+	 */
+	public static final long NONE = 0;
+
+	private static long pack(long srtt, long rttvar) {
+		return (Math.min(srtt, Integer.MAX_VALUE) << 32) | Math.min(rttvar, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * smoothed round trip time of an estimation
+	 *
+	 * @param rtt
+	 *            packed estimation
+	 * @return long
+	 */
+	public static long srtt(long rtt) {
+		return rtt >>> 32;
+	}
+
+	/**
+	 * round trip time variance of an estimation
+	 *
+	 * @param rtt
+	 *            packed estimation
+	 * @return long
+	 */
+	public static long rttvar(long rtt) {
+		return rtt & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * add a new sample to an estimation
+	 *
+	 * @param rtt
+	 *            packed estimation (NONE if there are no samples yet)
+	 * @param sample
+	 *            the measured round trip time
+	 * @return the new packed estimation
+	 */
+	public static long update(long rtt, long sample) {
+		sample = Math.max(1, sample);
+		if (rtt == NONE)
+			return pack(sample, sample / 2);
+
+		long srtt = srtt(rtt);
+		long rttvar = rttvar(rtt);
+		rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4; // beta = 1/4
+		srtt = (7 * srtt + sample) / 8; // alpha = 1/8
+		return pack(Math.max(1, srtt), rttvar);
+	}
+
+	/**
+	 * retransmission timeout: SRTT + max(G, 4 * RTTVAR), where the clock granularity G is the timer wheel resolution
+	 *
+	 * @param rtt
+	 *            packed estimation
+	 * @return long, RTO_INIT if there are no samples
+	 */
+	public static long timeout(long rtt) {
+		if (rtt == NONE)
+			return KademliaCommonConfig.RTO_INIT;
+		return srtt(rtt) + Math.max(KademliaCommonConfig.TIMER_TICK, 4 * rttvar(rtt));
+	}
+
+	/**
+	 * soft deadline, after which a request is considered slow: SRTT + RTTVAR
+	 *
+	 * @param rtt
+	 *            packed estimation
+	 * @return long, half of RTO_INIT if there are no samples
+	 */
+	public static long softTimeout(long rtt) {
+		if (rtt == NONE)
+			return KademliaCommonConfig.RTO_INIT / 2;
+		return srtt(rtt) + Math.max(KademliaCommonConfig.TIMER_TICK, rttvar(rtt));
+	}
+
+}
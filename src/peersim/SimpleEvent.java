@@ -17,6 +17,11 @@ public class SimpleEvent {
 
 	public long timestamp;
 
+	/**
+	 * true once the event has been given back to the EventPool (checked with POOL_DEBUG only)
+	 */
+	boolean recycled = false;
+
 	public SimpleEvent() {
 		this.timestamp = CommonState.getTime();
 	}
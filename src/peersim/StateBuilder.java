@@ -57,11 +57,14 @@ public class StateBuilder implements peersim.core.Control {
 				Node n2 = (Node) o2;
 				KademliaProtocol p1 = (KademliaProtocol) (n1.getProtocol(kademliaid));
 				KademliaProtocol p2 = (KademliaProtocol) (n2.getProtocol(kademliaid));
-				return Util.put0(p1.nodeId).compareTo(Util.put0(p2.nodeId));
+				return Util.compare(p1.nodeId, p2.nodeId);
 			}
 
 		});
 
+		// index the ids (they may have been assigned by any initializer)
+		NodeIndex.rebuild(kademliaid);
+
 		int sz = Network.size();
 
 		// for every node take 50 random node and add to k-bucket of it
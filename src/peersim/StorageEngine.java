@@ -0,0 +1,100 @@
+package peersim;
+
+/**
+ * The storage of the (key, value) pairs of a node, with a capacity in bytes.<br>
+ * An implementation decides what happens when a value does not fit (refuse it or evict other values) and may expire the values
+ * after a time to live. It also keeps the statistics of its use: lookups which found the value (hits) or not (misses), values
+ * evicted and expired.
+ */
+public interface StorageEngine {
+
+	/**
+	 * look a value up (counted as a hit or a miss)
+	 *
+	 * @param key
+	 *            NodeId
+	 * @return the value, or null if it is not stored (or expired)
+	 */
+	public Object get(NodeId key);
+
+	/**
+	 * check if a value is stored, without counting it as a lookup
+	 *
+	 * @param key
+	 *            NodeId
+	 * @return boolean
+	 */
+	public boolean containsKey(NodeId key);
+
+	/**
+	 * size of a stored value
+	 *
+	 * @param key
+	 *            NodeId
+	 * @return int, -1 if no value is stored with the key
+	 */
+	public int sizeOf(NodeId key);
+
+	/**
+	 * store a value with the key, replacing the previous one
+	 *
+	 * @param key
+	 *            NodeId
+	 * @param value
+	 *            Object (not null)
+	 * @param bytes
+	 *            size of the value
+	 * @return false if the value did not fit (nothing changed)
+	 */
+	public boolean put(NodeId key, Object value, int bytes);
+
+	/**
+	 * number of stored values
+	 *
+	 * @return int
+	 */
+	public int size();
+
+	/**
+	 * total size of the stored values
+	 *
+	 * @return long
+	 */
+	public long bytes();
+
+	/**
+	 * capacity left for new values, without evicting anything
+	 *
+	 * @return long
+	 */
+	public long free();
+
+	/**
+	 * number of lookups which found the value
+	 *
+	 * @return long
+	 */
+	public long getHits();
+
+	/**
+	 * number of lookups which did not find the value
+	 *
+	 * @return long
+	 */
+	public long getMisses();
+
+	/**
+	 * number of values evicted to make room for other ones
+	 *
+	 * @return long
+	 */
+	public long getEvictions();
+
+	/**
+	 * number of values removed because their time to live passed
+	 *
+	 * @return long
+	 */
+	public long getExpirations();
+
+}
@@ -0,0 +1,29 @@
+package peersim;
+
+/**
+ * Body of a MSG_STORE_RESP: the outcome of a store on a replica.
+ */
+public class StoreAck {
+
+	/**
+	 * key of the stored value
+	 */
+	public final NodeId key;
+
+	/**
+	 * true if the replica stored the value, false if it had no room for it
+	 */
+	public final boolean stored;
+
+	/**
+	 * remaining storage capacity of the replica (after the store)
+	 */
+	public final int capacity;
+
+	public StoreAck(NodeId key, boolean stored, int capacity) {
+		this.key = key;
+		this.stored = stored;
+		this.capacity = capacity;
+	}
+
+}
@@ -1,15 +1,12 @@
 package peersim;
 
-import java.math.BigInteger;
-
 public class StoreFile {
 
-    private BigInteger key;
+    private NodeId key;
     private Object value;
     private int size = 64;
-    private int storeNodeRemainSize;
 
-    public StoreFile(BigInteger key, Object value) {
+    public StoreFile(NodeId key, Object value) {
         this.key = key;
         this.value = value;
     }
@@ -20,15 +17,14 @@ public class StoreFile {
                 "key=" + key +
                 ", value=" + value +
                 ", size=" + size +
-                ", storeNodeRemainSize=" + storeNodeRemainSize +
                 '}';
     }
 
-    public BigInteger getKey() {
+    public NodeId getKey() {
         return key;
     }
 
-    public void setKey(BigInteger key) {
+    public void setKey(NodeId key) {
         this.key = key;
     }
 
@@ -47,12 +43,4 @@ public class StoreFile {
     public void setSize(int size) {
         this.size = size;
     }
-
-    public int getStoreNodeRemainSize() {
-        return storeNodeRemainSize;
-    }
-
-    public void setStoreNodeRemainSize(int storeNodeRemainSize) {
-        this.storeNodeRemainSize = storeNodeRemainSize;
-    }
 }
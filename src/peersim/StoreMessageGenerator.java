@@ -3,11 +3,9 @@ package peersim;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Control;
-import peersim.core.Network;
 import peersim.core.Node;
 import peersim.edsim.EDSimulator;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -29,16 +27,24 @@ public class StoreMessageGenerator implements Control {
 	 */
 	private final static String PAR_PROT = "protocol";
 
+	/**
+	 * number of values stored at every call (default 1): more than one are stored together through KademliaProtocol.storeAll()
+	 */
+	private final static String PAR_BATCH = "batch";
+
 	/**
 	 * MSPastry Protocol ID to act
 	 */
 	private final int pid;
 
+	private final int batch;
+
 	public static List<String> generateStoreVals= new ArrayList<>();
 
 	// ______________________________________________________________________________________________
 	public StoreMessageGenerator(String prefix) {
 		pid = Configuration.getPid(prefix + "." + PAR_PROT);
+		batch = Configuration.getInt(prefix + "." + PAR_BATCH, 1);
 	}
 
 	/**
@@ -47,20 +53,24 @@ public class StoreMessageGenerator implements Control {
 	 */
 	//______________________________________________________________________________________________
 	private Message generateStoreMessage(){
+		StoreFile sf = generateStoreFile();
+		Message m = Message.makeStoreReq(sf);
+		m.timestamp = CommonState.getTime();
+		m.dest = sf.getKey();
+
+		return m;
+	}
+
+	private StoreFile generateStoreFile(){
 		String value = UUID.randomUUID().toString().replace("-","");
-		BigInteger key = null;
+		NodeId key = null;
 		try {
-			key = new BigInteger(SHA1.shaEncode(value),16);
+			key = NodeId.fromHex(SHA1.shaEncode(value));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		StoreFile sf = new StoreFile(key,value);
 		generateStoreVals.add(value);
-		Message m = Message.makeStoreReq(sf);
-		m.timestamp = CommonState.getTime();
-		m.dest = key;
-
-		return m;
+		return new StoreFile(key,value);
 	}
 
 
@@ -72,14 +82,20 @@ public class StoreMessageGenerator implements Control {
 	 * @return boolean
 	 */
 	public boolean execute() {
-		Node start;
-		do {
-			start = Network.get(CommonState.r.nextInt(Network.size()));
-		} while ((start == null) || (!start.isUp()));
+		Node start = LiveNodes.random();
+		if (start == null)
+			return false;
 
 		// send message
 //		System.out.println(((KademliaProtocol)start.getProtocol(pid)).getNodeId());
-		EDSimulator.add(0, generateStoreMessage(), start, pid);
+		if (batch > 1) {
+			StoreFile[] files = new StoreFile[batch];
+			for (int i = 0; i < batch; i++)
+				files[i] = generateStoreFile();
+			((KademliaProtocol) start.getProtocol(pid)).storeAll(files, pid);
+		} else {
+			EDSimulator.add(0, generateStoreMessage(), start, pid);
+		}
 
 		return false;
 	}
@@ -0,0 +1,86 @@
+package peersim;
+
+/**
+ * This class represents a store operation: after the lookup of the key, the value is sent to REPLICATION nodes and the
+ * operation succeeds when WRITE_QUORUM of them acknowledged it. It ends when every replica answered or at its deadline,
+ * whichever comes first, so lost or dead replicas never stall it. Every operation keeps its own counters, so concurrent stores
+ * of the same node do not interfere.<br>
+ * A batched store carries several values (whose keys share the prefix looked up) in the same messages: every replica answers
+ * once for all of them, and every value has its own acknowledgements.
+ */
+public class StoreOperation {
+
+	/**
+	 * id of the operation (the same of the lookup of the key)
+	 */
+	public final long operationId;
+
+	/**
+	 * the (key, value) pairs to store
+	 */
+	public final StoreFile[] files;
+
+	/**
+	 * Start timestamp of the store operation
+	 */
+	protected final long timestamp;
+
+	/**
+	 * number of replicas the value has been sent to
+	 */
+	protected int replicas = 0;
+
+	/**
+	 * number of replicas which stored every value
+	 */
+	protected final int[] acks;
+
+	/**
+	 * number of replicas which answered
+	 */
+	protected int answers = 0;
+
+	/**
+	 * timer which ends the operation if some replica does not answer in time (null until the replicas are contacted)
+	 */
+	protected Timeout deadline = null;
+
+	public StoreOperation(long operationId, StoreFile[] files, long timestamp) {
+		this.operationId = operationId;
+		this.files = files;
+		this.acks = new int[files.length];
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * count the acknowledgement of a replica for a value
+	 *
+	 * @param i
+	 *            index of the value
+	 * @return true if the write quorum of the value has just been reached
+	 */
+	public boolean acknowledge(int i) {
+		return ++acks[i] == KademliaCommonConfig.WRITE_QUORUM;
+	}
+
+	/**
+	 * check if the write quorum of a value has been reached
+	 *
+	 * @param i
+	 *            index of the value
+	 * @return boolean
+	 */
+	public boolean succeeded(int i) {
+		return acks[i] >= KademliaCommonConfig.WRITE_QUORUM;
+	}
+
+	/**
+	 * check if every replica answered
+	 *
+	 * @return boolean
+	 */
+	public boolean completed() {
+		return answers >= replicas;
+	}
+
+}
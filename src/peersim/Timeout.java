@@ -1,9 +1,10 @@
 package peersim;
 
-import java.math.BigInteger;
+import peersim.core.CommonState;
 
 /**
- * This class represent a timeout event.
+ * This class represent the timeout of a request. It is kept in the TimerWheel of the node which sent the request, and it is
+ * cancelled when the response arrives.
  * 
  * @author Daniele Furlan, Maurizio Bonani
  * @version 1.0
@@ -18,7 +19,7 @@ public class Timeout extends SimpleEvent {
 	/**
 	 * The node wich failed to response
 	 */
-	public BigInteger node;
+	public NodeId node;
 
 	/**
 	 * The id of the message sent to the node
@@ -30,15 +31,66 @@ public class Timeout extends SimpleEvent {
 	 */
 	public long opID;
 
+	/**
+	 * Time at which the timeout expires
+	 */
+	public long deadline;
+
+	/**
+	 * Time of the hard deadline, when the timeout is armed for the soft one (-1 otherwise)
+	 */
+	public long hardDeadline = -1;
+
+	/**
+	 * true if the request slot of the find operation has already been given to another node at the soft deadline
+	 */
+	public boolean released = false;
+
+	/**
+	 * slot of the TimerWheel holding this timeout (-1 if it is not in a wheel, TimerWheel.EXPIRED if it expired and has not been
+	 * handled yet) and links to the other timeouts of the slot
+	 */
+	int slot = -1;
+	Timeout next;
+	Timeout prev;
+
+	// ______________________________________________________________________________________________
+	/**
+	 * check if this is the deadline of a whole find operation (it has no node) rather than the timeout of a request
+	 * 
+	 * @return boolean
+	 */
+	public boolean isOperationDeadline() {
+		return node == null;
+	}
+
 	// ______________________________________________________________________________________________
 	/**
 	 * Creates an empty message by using default values (message type = MSG_LOOKUP and <code>new String("")</code> value for the
 	 * body of the message)
 	 */
-	public Timeout(BigInteger node, long msgID, long opID) {
+	public Timeout(NodeId node, long msgID, long opID) {
 		super(TIMEOUT);
 		this.node = node;
 		this.msgID = msgID;
 		this.opID = opID;
 	}
-}
\ No newline at end of file
+
+	// ______________________________________________________________________________________________
+	/**
+	 * Reinitialize a timeout taken from the EventPool, as if it had just been created
+	 */
+	void reset(NodeId node, long msgID, long opID) {
+		this.timestamp = CommonState.getTime();
+		this.recycled = false;
+		this.node = node;
+		this.msgID = msgID;
+		this.opID = opID;
+		this.deadline = 0;
+		this.hardDeadline = -1;
+		this.released = false;
+		this.slot = -1;
+		this.next = null;
+		this.prev = null;
+	}
+}
@@ -0,0 +1,231 @@
+package peersim;
+
+/**
+ * Hashed timer wheel holding the request timeouts of a node.<br>
+ * Time is divided in ticks of fixed length (the resolution) and every Timeout is put, according to its deadline, in the slot of
+ * the first tick not before the deadline (slot = tick modulo number of slots). A single simulator event (a Tick) wakes the node
+ * up at the first occupied slot, and all the timeouts expired by then are handled in a batch. A timeout can be cancelled in
+ * constant time, so answered requests leave no dead event in the simulator queue.
+ *
+ * <b>Warning:</b> timeouts fire at tick granularity, i.e. up to one resolution after their deadline.
+ */
+public class TimerWheel {
+
+	/**
+	 * Event Type: the wheel must be checked for expired timeouts
+	 */
+	public static final int TICK = 101;
+
+	/**
+	 * slot of a timeout returned by expire() and not handled yet
+	 */
+	public static final int EXPIRED = -2;
+
+	/**
+	 * The event which wakes up the node owning the wheel. Only the last scheduled Tick is valid: the others are ignored.
+	 */
+	public static class Tick extends SimpleEvent {
+
+		/**
+		 * sequence number of the tick, compared with the one the wheel is waiting for
+		 */
+		public final long token;
+
+		public Tick(long token) {
+			super(TICK);
+			this.token = token;
+		}
+	}
+
+	// heads of the lists of timeouts of every slot
+	private final Timeout[] slots;
+
+	private final int mask;
+
+	private final long resolution;
+
+	// number of timeouts in the wheel
+	private int size = 0;
+
+	// all the ticks up to this one have been processed
+	private long lastTick;
+
+	// time of the valid Tick event in the simulator queue (-1 if none)
+	private long wakeUp = -1;
+
+	// token of the valid Tick event
+	private long token = 0;
+
+	// the timeouts returned by the last expire()
+	private Timeout[] expired = new Timeout[16];
+
+	/**
+	 * creates an empty wheel
+	 *
+	 * @param slots
+	 *            number of slots (rounded up to a power of 2)
+	 * @param resolution
+	 *            length of a tick
+	 */
+	public TimerWheel(int slots, long resolution) {
+		int len = Integer.highestOneBit(Math.max(1, slots * 2 - 1));
+		this.slots = new Timeout[len];
+		this.mask = len - 1;
+		this.resolution = resolution;
+		this.lastTick = 0;
+	}
+
+	// the first tick not before the given time
+	private long tickOf(long time) {
+		return (time + resolution - 1) / resolution;
+	}
+
+	/**
+	 * add a timeout to the wheel (its deadline must be set)
+	 *
+	 * @param t
+	 *            Timeout
+	 * @return the time at which the Tick event for this timeout has to be scheduled, or -1 if a valid Tick will already wake the
+	 *         node up in time
+	 */
+	public long schedule(Timeout t) {
+		long tick = Math.max(tickOf(t.deadline), lastTick + 1);
+		int slot = (int) (tick & mask);
+		t.slot = slot;
+		t.prev = null;
+		t.next = slots[slot];
+		if (t.next != null)
+			t.next.prev = t;
+		slots[slot] = t;
+		size++;
+
+		long time = tick * resolution;
+		if (wakeUp >= 0 && wakeUp <= time)
+			return -1;
+		return time;
+	}
+
+	/**
+	 * remove a timeout from the wheel
+	 *
+	 * @param t
+	 *            Timeout
+	 */
+	public void cancel(Timeout t) {
+		if (t.slot < 0) { // not in the wheel, or expired but not handled yet (it will not be handled anymore)
+			t.slot = -1;
+			return;
+		}
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			slots[t.slot] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.next = null;
+		t.prev = null;
+		t.slot = -1;
+		size--;
+	}
+
+	/**
+	 * create the Tick event to schedule at the given time, invalidating any other Tick already scheduled
+	 *
+	 * @param time
+	 *            long
+	 * @return Tick
+	 */
+	public Tick newTick(long time) {
+		wakeUp = time;
+		return new Tick(++token);
+	}
+
+	/**
+	 * check if a Tick event is the one the wheel is waiting for
+	 *
+	 * @param tick
+	 *            Tick
+	 * @return boolean
+	 */
+	public boolean isValid(Tick tick) {
+		return tick.token == token;
+	}
+
+	/**
+	 * Remove from the wheel all the timeouts expired at the given time. They have to be handled one by one through getExpired(),
+	 * since handling one of them may cancel (and even release and reuse) the following ones.
+	 *
+	 * @param now
+	 *            current time
+	 * @return the number of expired timeouts
+	 */
+	public int expire(long now) {
+		wakeUp = -1;
+		int n = 0;
+		long nowTick = now / resolution;
+		long from = Math.max(lastTick + 1, nowTick - mask);
+		for (long tick = from; tick <= nowTick && size > 0; tick++) {
+			Timeout t = slots[(int) (tick & mask)];
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.deadline <= now) {
+					cancel(t);
+					t.slot = EXPIRED;
+					if (n == expired.length)
+						expired = java.util.Arrays.copyOf(expired, n * 2);
+					expired[n++] = t;
+				}
+				t = next;
+			}
+		}
+		if (nowTick > lastTick)
+			lastTick = nowTick;
+		return n;
+	}
+
+	/**
+	 * the i-th timeout returned by the last expire(), unless it has been cancelled (or scheduled again) since
+	 *
+	 * @param i
+	 *            int, lower than the number returned by expire()
+	 * @return Timeout, or null if it does not have to be handled anymore
+	 */
+	public Timeout getExpired(int i) {
+		Timeout t = expired[i];
+		expired[i] = null;
+		if (t.slot != EXPIRED)
+			return null;
+		t.slot = -1;
+		return t;
+	}
+
+	/**
+	 * time of the next occupied slot, at which the Tick event has to be scheduled
+	 *
+	 * @param now
+	 *            current time
+	 * @return long, -1 if the wheel is empty or a valid Tick will already wake the node up in time
+	 */
+	public long nextWakeUp(long now) {
+		if (size == 0)
+			return -1;
+		for (long tick = Math.max(lastTick, now / resolution) + 1;; tick++) {
+			if (slots[(int) (tick & mask)] != null) {
+				long time = tick * resolution;
+				if (wakeUp >= 0 && wakeUp <= time)
+					return -1;
+				return time;
+			}
+		}
+	}
+
+	/**
+	 * number of timeouts in the wheel
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+}
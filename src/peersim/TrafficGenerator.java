@@ -3,12 +3,8 @@ package peersim;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Control;
-import peersim.core.Network;
 import peersim.core.Node;
 import peersim.edsim.EDSimulator;
-import sun.nio.ch.Net;
-
-import java.math.BigInteger;
 
 /**
  * This control generates random search traffic from nodes to random destination node.
@@ -50,10 +46,7 @@ public class TrafficGenerator implements Control {
 		m.timestamp = CommonState.getTime();
 
 		// existing active destination node
-		Node n = Network.get(CommonState.r.nextInt(Network.size()));
-		while (!n.isUp()) {
-			n = Network.get(CommonState.r.nextInt(Network.size()));
-		}
+		Node n = LiveNodes.random();
 		m.dest = ((KademliaProtocol) (n.getProtocol(pid))).nodeId;
 
 		return m;
@@ -69,10 +62,9 @@ public class TrafficGenerator implements Control {
 	 * @return boolean
 	 */
 	public boolean execute() {
-		Node start;
-		do {
-			start = Network.get(CommonState.r.nextInt(Network.size()));
-		} while ((start == null) || (!start.isUp()));
+		Node start = LiveNodes.random();
+		if (start == null)
+			return false;
 
 		// send message
 		EDSimulator.add(0, generateFindNodeMessage(), start, pid);
@@ -1,7 +1,5 @@
 package peersim;
 
-import java.util.Comparator;
-
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Control;
@@ -103,26 +101,6 @@ public class Turbulence implements Control {
 		System.err.println(String.format("Turbolence: [p_idle=%f] [p_add=%f] [(min,max)=(%d,%d)]", p_idle, p_add, maxsize, minsize));
 	}
 
-	@SuppressWarnings("unchecked")
-	public void sortNet() {
-		Network.sort(new Comparator() {
-			// ______________________________________________________________________________________
-			public int compare(Object o1, Object o2) {
-				Node n1 = (Node) o1;
-				Node n2 = (Node) o2;
-				KademliaProtocol p1 = (KademliaProtocol) (n1.getProtocol(kademliaid));
-				KademliaProtocol p2 = (KademliaProtocol) (n2.getProtocol(kademliaid));
-				return Util.put0(p1.nodeId).compareTo(Util.put0(p2.nodeId));
-			}
-
-			// ______________________________________________________________________________________
-			public boolean equals(Object obj) {
-				return compare(this, obj) == 0;
-			}
-			// ______________________________________________________________________________________
-		});
-	}
-
 	// ______________________________________________________________________________________________
 	public boolean add() {
 
@@ -138,15 +116,14 @@ public class Turbulence implements Control {
 		// set node Id
 		UniformRandomGenerator urg = new UniformRandomGenerator(KademliaCommonConfig.BITS, CommonState.r);
 		((KademliaProtocol) (newNode.getProtocol(kademliaid))).setNodeId(urg.generate());
+		// the network order does not matter: ids are resolved through the NodeIndex
+		NodeIndex.put(newKad.nodeId, newNode);
 
-		// sort network
-		sortNet();
-
-		// select one random bootstrap node
-		Node start;
-		do {
-			start = Network.get(CommonState.r.nextInt(Network.size()));
-		} while ((start == null) || (!start.isUp()));
+		// select one random bootstrap node (among the nodes up before this one)
+		Node start = LiveNodes.random();
+		LiveNodes.add(newNode);
+		if (start == null)
+			return false;
 
 		// create auto-search message (search message with destination my own Id)  �½ڵ�������Լ�
 		Message m = Message.makeFindNode("Bootstrap traffic");
@@ -170,13 +147,13 @@ public class Turbulence implements Control {
 	// ______________________________________________________________________________________________
 	public boolean rem() {
 		// select one random node to remove
-		Node remove;
-		do {
-			remove = Network.get(CommonState.r.nextInt(Network.size()));
-		} while ((remove == null) || (!remove.isUp()));
+		Node remove = LiveNodes.random();
+		if (remove == null)
+			return false;
 
 		// remove node (set its state to DOWN)
 		remove.setFailState(Node.DOWN);
+		LiveNodes.remove(remove);
 
 		return false;
 	}
@@ -189,10 +166,7 @@ public class Turbulence implements Control {
 			return false;
 
 		// get network size
-		int sz = Network.size();
-		for (int i = 0; i < Network.size(); i++)
-			if (!Network.get(i).isUp())
-				sz--;
+		int sz = LiveNodes.size();
 
 		// perform the correct operation basing on the probability
 		if (dice < p_idle) {
@@ -1,9 +1,7 @@
 package peersim;
 
-import java.math.BigInteger;
-
 /**
- * Some utility and mathematical function to work with BigInteger numbers and strings.
+ * Some utility and mathematical function to work with node ids and strings.
  * 
  * @author Daniele Furlan, Maurizio Bonani
  * @version 1.0
@@ -15,54 +13,103 @@ public class Util {
 	 * leftmost side of the number
 	 * 
 	 * @param b1
-	 *            BigInteger
+	 *            NodeId
 	 * @param b2
-	 *            BigInteger
+	 *            NodeId
 	 * @return int
 	 */
-	public static final int prefixLen(BigInteger b1, BigInteger b2) {
+	public static final int prefixLen(NodeId b1, NodeId b2) {
+		return xorLeadingZeros(b1, b2) - (NodeId.MAX_BITS - KademliaCommonConfig.BITS);
+	}
 
-		String s1 = Util.put0(b1);
-		String s2 = Util.put0(b2);
+	/**
+	 * Count the leading zero bits of (a XOR b) over the full 160 bit words, without materializing the XOR
+	 * 
+	 * @param a
+	 *            NodeId
+	 * @param b
+	 *            NodeId
+	 * @return int between 0 and 160
+	 */
+	public static final int xorLeadingZeros(NodeId a, NodeId b) {
+		long x = a.hi ^ b.hi;
+		if (x != 0)
+			return Long.numberOfLeadingZeros(x);
+		x = a.mid ^ b.mid;
+		if (x != 0)
+			return 64 + Long.numberOfLeadingZeros(x);
+		return 128 + Integer.numberOfLeadingZeros(a.lo ^ b.lo);
+	}
 
-		int i = 0;
-		for (i = 0; i < s1.length(); i++) {
-			if (s1.charAt(i) != s2.charAt(i))
-				return i;
-		}
+	/**
+	 * Compare the distances of a and b from target, i.e. (a XOR target) against (b XOR target), word by word and without
+	 * materializing them
+	 * 
+	 * @param a
+	 *            NodeId
+	 * @param b
+	 *            NodeId
+	 * @param target
+	 *            NodeId
+	 * @return a negative number if a is closer to target than b, 0 if they are at the same distance, a positive number otherwise
+	 */
+	public static final int compareDistance(NodeId a, NodeId b, NodeId target) {
+		if (a.hi != b.hi)
+			return Long.compareUnsigned(a.hi ^ target.hi, b.hi ^ target.hi);
+		if (a.mid != b.mid)
+			return Long.compareUnsigned(a.mid ^ target.mid, b.mid ^ target.mid);
+		return Integer.compareUnsigned(a.lo ^ target.lo, b.lo ^ target.lo);
+	}
 
-		return i;
+	/**
+	 * Numerical (unsigned) ordering of two ids, the same ordering given by the binary strings of put0
+	 * 
+	 * @param a
+	 *            NodeId
+	 * @param b
+	 *            NodeId
+	 * @return a negative number, zero or a positive number as a is less than, equal to or greater than b
+	 */
+	public static final int compare(NodeId a, NodeId b) {
+		if (a.hi != b.hi)
+			return Long.compareUnsigned(a.hi, b.hi);
+		if (a.mid != b.mid)
+			return Long.compareUnsigned(a.mid, b.mid);
+		return Integer.compareUnsigned(a.lo, b.lo);
 	}
 
 	/**
 	 * return the distance between two number wich is defined as (a XOR b)
 	 * 
 	 * @param a
-	 *            BigInteger
+	 *            NodeId
 	 * @param b
-	 *            BigInteger
-	 * @return BigInteger
+	 *            NodeId
+	 * @return NodeId
 	 */
-	public static final BigInteger distance(BigInteger a, BigInteger b) {
+	public static final NodeId distance(NodeId a, NodeId b) {
 		return a.xor(b);
 	}
 
 	/**
-	 * convert a BigInteger into a String (base 2) and lead all needed non-significative zeroes in order to reach the canonical
+	 * convert a NodeId into a String (base 2) and lead all needed non-significative zeroes in order to reach the canonical
 	 * length of a nodeid
 	 * 
 	 * @param b
-	 *            BigInteger
+	 *            NodeId
 	 * @return String
 	 */
-	public static final String put0(BigInteger b) {
+	public static final String put0(NodeId b) {
 		if (b == null)
 			return null;
-		String s = b.toString(2); // base 2
-		while (s.length() < KademliaCommonConfig.BITS) {
-			s = "0" + s;
+		// write the BITS least significant bits, most significant first
+		char[] s = new char[KademliaCommonConfig.BITS];
+		for (int i = 0; i < s.length; i++) {
+			int bit = s.length - 1 - i;
+			long word = bit >= 96 ? b.hi >>> (bit - 96) : bit >= 32 ? b.mid >>> (bit - 32) : b.lo >>> bit;
+			s[i] = (word & 1) == 0 ? '0' : '1';
 		}
-		return s;
+		return new String(s);
 	}
 
 }